@@ -0,0 +1,145 @@
+package ru.coolsoft.p2pcamera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ru.coolsoft.common.ReceiverReport;
+
+/**
+ * Derives the encoder bitrate from the clients' {@link ReceiverReport}s, additive increase - multiplicative decrease
+ * per client. A client is taken as congested once its jitter or decoder queue grows past the limits,
+ * and its target drops below the bitrate it actually receives. A client receiving close to its target with
+ * no congestion signs probes for more. A shared encoder makes the slowest client set the bitrate,
+ * while with simulcast the targets only pick the clients' layers and the encoders keep theirs
+ */
+class BitrateController {
+    static final int MAX_JITTER_MILLIS = 80;
+    static final int MAX_QUEUE_DEPTH = 5;
+    static final double DECREASE_FACTOR = 0.85;
+    static final double INCREASE_FACTOR = 1.08;
+    /**
+     * Part of the target a client must receive for the link to be considered saturated rather than the encoder idle
+     */
+    static final double UTILIZATION_THRESHOLD = 0.8;
+    /**
+     * Reports to wait for after a decrease before probing again
+     */
+    static final int HOLD_REPORTS = 2;
+    /**
+     * Relative change of the target which is worth retuning the encoder for
+     */
+    private static final double MIN_CHANGE = 0.05;
+
+    private static class ClientState {
+        int target;
+        int hold;
+    }
+
+    private final int initial;
+    private final int min;
+    private final int max;
+    private final boolean sharedEncoder;
+    private final Map<Object, ClientState> clients = new HashMap<>();
+    private int applied;
+
+    /**
+     * @param initialBitrate the bitrate the encoder starts with
+     * @param minBitrate     lower bound, also for the slowest link
+     * @param maxBitrate     upper bound of the probing
+     */
+    BitrateController(int initialBitrate, int minBitrate, int maxBitrate) {
+        this(initialBitrate, minBitrate, maxBitrate, true);
+    }
+
+    /**
+     * @param sharedEncoder whether the clients get a single encoder to retune, {@code false} for simulcast,
+     *                      where every new client starts from the initial bitrate
+     */
+    BitrateController(int initialBitrate, int minBitrate, int maxBitrate, boolean sharedEncoder) {
+        initial = initialBitrate;
+        min = minBitrate;
+        max = maxBitrate;
+        this.sharedEncoder = sharedEncoder;
+        applied = initialBitrate;
+    }
+
+    /**
+     * @return the bitrate to retune the encoder to or {@code 0} if the current one is fine
+     */
+    synchronized int onReport(Object client, ReceiverReport report) {
+        return onReport(client, report, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param sourceBitrate the bitrate the client's stream is encoded at, a client receiving most of it
+     *                      probes for more as a link saturated at its target would
+     * @return the bitrate to retune the encoder to or {@code 0} if the current one is fine,
+     * always {@code 0} without a shared encoder
+     */
+    synchronized int onReport(Object client, ReceiverReport report, int sourceBitrate) {
+        ClientState state = clients.get(client);
+        if (state == null) {
+            state = new ClientState();
+            state.target = applied;
+            clients.put(client, state);
+        }
+
+        long received = report.getReceivedBitrate();
+        if (report.jitterMillis > MAX_JITTER_MILLIS || report.queueDepth > MAX_QUEUE_DEPTH) {
+            long decreased = (long) (state.target * DECREASE_FACTOR);
+            if (received > 0) {
+                decreased = Math.min(decreased, (long) (received * DECREASE_FACTOR));
+            }
+            state.target = (int) Math.max(min, decreased);
+            state.hold = HOLD_REPORTS;
+        } else if (state.hold > 0) {
+            state.hold--;
+        } else if (received >= Math.min(state.target, sourceBitrate) * UTILIZATION_THRESHOLD) {
+            state.target = (int) Math.min(max, (long) (state.target * INCREASE_FACTOR));
+        }
+
+        return retarget();
+    }
+
+    /**
+     * @return the bitrate to retune the encoder to or {@code 0} if the current one is fine
+     */
+    synchronized int removeClient(Object client) {
+        if (clients.remove(client) == null) {
+            return 0;
+        }
+        return retarget();
+    }
+
+    /**
+     * @return the bitrate the client's link is taken to carry, the applied one for an unknown client
+     */
+    synchronized int getTarget(Object client) {
+        ClientState state = clients.get(client);
+        return state == null ? applied : state.target;
+    }
+
+    synchronized int getApplied() {
+        return applied;
+    }
+
+    private int retarget() {
+        if (!sharedEncoder) {
+            return 0;
+        }
+        int target = clients.isEmpty() ? initial : max;
+        for (ClientState state : clients.values()) {
+            target = Math.min(target, state.target);
+        }
+
+        if (Math.abs(target - applied) < applied * MIN_CHANGE
+                && target != min && target != max) {
+            return 0;
+        }
+        if (target == applied) {
+            return 0;
+        }
+        applied = target;
+        return target;
+    }
+}
@@ -5,53 +5,387 @@ import static android.hardware.camera2.CameraMetadata.FLASH_MODE_OFF;
 import static android.hardware.camera2.CameraMetadata.FLASH_MODE_TORCH;
 import static android.hardware.camera2.CaptureRequest.CONTROL_AE_MODE;
 import static android.hardware.camera2.CaptureRequest.FLASH_MODE;
-import static android.media.MediaFormat.MIMETYPE_VIDEO_AVC;
 
+import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
+import android.media.Image;
+import android.media.ImageReader;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.ReceiverReport;
+import ru.coolsoft.common.VideoCodecs;
+import ru.coolsoft.common.enums.VideoCodec;
 
 public class CameraService {
     private static final String LOG_TAG = CameraService.class.getSimpleName();
+    private static final int MIN_BITRATE = 100000;
+    /**
+     * Part of the requested bitrate HEVC gets for about the picture quality AVC has with the whole of it
+     */
+    private static final double HEVC_BITRATE_RATIO = 0.6;
+    /**
+     * Each simulcast layer halves the size of the previous one, so gets a quarter of its bitrate
+     */
+    private static final int LAYER_BITRATE_DIVISOR = 4;
+    /**
+     * Margin of a client's bitrate target over the bitrate of a better layer to switch up to it,
+     * for the client not to flip between the layers
+     */
+    private static final double LAYER_UPSWITCH_MARGIN = 1.2;
+    /**
+     * Size of the frames the motion is looked for in, the detector averages them down further
+     */
+    private static final int MOTION_WIDTH = 160;
+    private static final int MOTION_HEIGHT = 120;
+    private static final long MOTION_HOLD_MILLIS = 3000;
 
     public final String mCameraID;
     private final Handler mHandler;
     private final CameraServiceListener listener;
+    private final int mGopCacheLimit;
 
     public final Set<Surface> pendingSurfaces = new HashSet<>();
-    private final List<byte[]> csdBuffers = new ArrayList<>();
 
     private volatile CameraDevice mCameraDevice = null;
     private CameraCaptureSession mSession;
+    /**
+     * Outputs of the current session, configured or being configured. The repeating request targets
+     * {@link #pendingSurfaces} among them
+     */
+    private Set<Surface> mSessionSurfaces;
     private CaptureRequest.Builder mPreviewBuilder;
 
-    private MediaCodec mCodec = null;
-    private Surface mEncoderSurface;
+    /**
+     * The simulcast layers from the best to the worst, the first one encodes the requested profile
+     */
+    private final List<EncoderLayer> mLayers = new CopyOnWriteArrayList<>();
+    private volatile int mLayerCount = 1;
+    /**
+     * Sizes the camera streams to an encoder in, {@code null} for the layers to be taken as they are scaled
+     */
+    private Size[] mEncoderSizes;
+    private volatile boolean mStreaming;
+    private EncoderProfile mRequestedProfile = EncoderProfile.DEFAULT;
+    private VideoCodec mRequestedCodec = VideoCodec.AVC;
+    /**
+     * {@link VideoCodecs} the device encodes, looked up on the first request
+     */
+    private int mEncoders = -1;
+    private volatile BitrateController mBitrateController;
+    private volatile boolean mLowLatency;
+    /**
+     * Takes the encoder callbacks: the output buffers go back to the codec right after they are copied
+     */
+    private HandlerThread mEncoderThread;
+    private Handler mEncoderHandler;
+    /**
+     * Hands the copied frames to the clients, so that neither the send queues nor the sealing hold the encoders up
+     */
+    private HandlerThread mFanOutThread;
+    private Handler mFanOutHandler;
+    private volatile boolean mMotionGating;
+    /**
+     * Frames per second encoded while nothing moves, {@code 0} for a key frame per key frame interval
+     */
+    private volatile int mIdleFrameRate;
+    private ImageReader mMotionReader;
+    private MotionDetector mMotionDetector;
+    /**
+     * Set while motion gating keeps the encoders off the repeating request
+     */
+    private boolean mIdle;
+    private final Runnable mIdleCapture = this::captureIdleFrame;
+
+    private final EncoderLayer.Listener mLayerListener = new EncoderLayer.Listener() {
+        @Override
+        public void onFrame(EncoderLayer layer, PooledBuffer frame, boolean keyFrame) {
+            listener.onEncodedFrameAvailable(layer.index, frame, keyFrame);
+        }
+
+        @Override
+        public void onFormatChanged(EncoderLayer layer, List<byte[]> csdBuffers) {
+            listener.onOutputFormatChanged(layer.index, csdBuffers);
+        }
+    };
 
-    public CameraService(String cameraID, Handler handler, CameraServiceListener cameraListener) {
+    /**
+     * @param gopCacheLimit the most bytes of the latest group of pictures to keep for joining clients
+     *                      per layer, {@code 0} to keep none
+     */
+    public CameraService(String cameraID, Handler handler, CameraServiceListener cameraListener, int gopCacheLimit) {
         mCameraID = cameraID;
         mHandler = handler;
         listener = cameraListener;
+        mGopCacheLimit = gopCacheLimit;
+        mLayers.add(new EncoderLayer(0, mHandler, mLayerListener, mGopCacheLimit));
+    }
+
+    public List<byte[]> getCsdBuffers(int layer) {
+        return mLayers.get(layer).getCsdBuffers();
+    }
+
+    /**
+     * Hands the cached group of pictures of the layer out to the sink with the live frames held off,
+     * so that a client starting to take them from {@link FrameSink#onReplayStart} gets no gap or overlap
+     */
+    public void replayGop(int layer, FrameSink sink) {
+        mLayers.get(layer).replayGop(sink);
+    }
+
+    /**
+     * @return the profile the layer's encoder runs with, as validated against its capabilities
+     */
+    public EncoderProfile getProfile(int layer) {
+        return mLayers.get(layer).getProfile();
+    }
+
+    /**
+     * @return the profile last requested, before it is fitted to the encoder
+     */
+    public synchronized EncoderProfile getRequestedProfile() {
+        return mRequestedProfile;
+    }
+
+    /**
+     * @return the codec the encoders run
+     */
+    public VideoCodec getVideoCodec() {
+        return mLayers.get(0).getVideoCodec();
+    }
+
+    /**
+     * @return the number of the simulcast layers, {@code 1} without simulcast
+     */
+    public int getLayerCount() {
+        return mLayerCount;
+    }
+
+    /**
+     * Remembers the profile and the codec for the encoders to start with and restarts the running ones
+     * unless they fit the first layer the same way the current ones do. A codec the device can't encode falls back to AVC
+     *
+     * @return whether the encoders got restarted
+     */
+    public synchronized boolean requestProfile(EncoderProfile profile, VideoCodec codec) {
+        if (mEncoders < 0) {
+            mEncoders = VideoCodecs.getSupported(true);
+        }
+        if (!VideoCodecs.contains(mEncoders, codec)) {
+            codec = VideoCodec.AVC;
+        }
+        mRequestedProfile = profile;
+        mRequestedCodec = codec;
+        if (!mStreaming || mLayers.get(0).fits(scaleProfile(profile, codec), codec)) {
+            return false;
+        }
+
+        Log.i(LOG_TAG, String.format("restarting %s encoders with profile %s", codec, profile));
+        stopMediaStreaming();
+        setUpMediaCodec();
+        return true;
+    }
+
+    /**
+     * Retunes the encoder bitrate to what the clients' links carry or, with simulcast,
+     * picks the layer the client's link carries
+     *
+     * @param client the reporting connection, without simulcast the slowest one sets the bitrate
+     * @param layer  the layer the client gets
+     * @return the layer for the client to get
+     */
+    public int onReceiverReport(Object client, int layer, ReceiverReport report) {
+        BitrateController controller = mBitrateController;
+        if (controller == null) {
+            return layer;
+        }
+        if (mLayerCount == 1) {
+            applyBitrate(controller, controller.onReport(client, report));
+            return 0;
+        }
+
+        //the layers run at fixed bitrates, a client getting most of its layer's one may take a better layer
+        controller.onReport(client, report, getProfile(layer).bitRate);
+        return selectLayer(controller.getTarget(client), layer);
     }
 
-    public List<byte[]> getCsdBuffers() {
-        return Collections.unmodifiableList(csdBuffers);
+    /**
+     * @return the best layer within the bitrate target, the current one if a better layer is too close to it
+     * and the worst one if even that exceeds the target
+     */
+    private int selectLayer(int target, int current) {
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            int bitRate = getProfile(layer).bitRate;
+            if (bitRate > target) {
+                continue;
+            }
+            if (layer < current && bitRate * LAYER_UPSWITCH_MARGIN > target) {
+                return Math.min(current, layer + 1);
+            }
+            return layer;
+        }
+        return mLayerCount - 1;
+    }
+
+    /**
+     * Stops taking the client's reports into account
+     */
+    public void removeReceiver(Object client) {
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            int bitrate = controller.removeClient(client);
+            if (mLayerCount == 1) {
+                applyBitrate(controller, bitrate);
+            }
+        }
+    }
+
+    private synchronized void applyBitrate(BitrateController controller, int bitrate) {
+        //the encoder may have been restarted with a controller of its own meanwhile
+        if (bitrate == 0 || !mStreaming || controller != mBitrateController) {
+            return;
+        }
+        mLayers.get(0).setBitrate(bitrate);
+    }
+
+    /**
+     * Asks the layer's encoder for a key frame on behalf of a client which has joined, lost the picture
+     * or switches to the layer. Requests are rate limited and coalesced with each other
+     * and with the key frames the encoder produces anyway
+     */
+    public void requestSyncFrame(int layer) {
+        mLayers.get(layer).requestSyncFrame();
+    }
+
+    /**
+     * Takes effect on the next encoder start
+     *
+     * @param enabled whether to configure the encoder for the lowest latency it supports
+     */
+    public void setLowLatency(boolean enabled) {
+        mLowLatency = enabled;
+    }
+
+    /**
+     * Takes effect on the next encoder start
+     *
+     * @param layers number of the encoders of the requested profile downscaled by 2 one after another,
+     *               {@code 1} for a single encoder
+     */
+    public synchronized void setSimulcastLayers(int layers) {
+        if (!mStreaming) {
+            mLayerCount = Math.max(1, layers);
+        }
+    }
+
+    /**
+     * Takes effect on the next encoder start
+     *
+     * @param sizes the camera's output sizes for {@link android.media.MediaCodec}, the simulcast layers are fitted to
+     */
+    public synchronized void setEncoderSizes(Size[] sizes) {
+        mEncoderSizes = sizes;
+    }
+
+    /**
+     * Takes effect on the next encoder start
+     *
+     * @param enabled       whether to encode at the idle rate while nothing moves in the picture
+     * @param idleFrameRate frames per second to encode while idle, {@code 0} for key frames only,
+     *                      one per key frame interval
+     */
+    public void setMotionGating(boolean enabled, int idleFrameRate) {
+        mMotionGating = enabled;
+        mIdleFrameRate = idleFrameRate;
+    }
+
+    public boolean isMotionGating() {
+        return mMotionGating;
+    }
+
+    /**
+     * @return whether the motion gating is active and sees motion or is inactive
+     */
+    public synchronized boolean isMotion() {
+        return !mIdle;
+    }
+
+    /**
+     * @return the profile with the bitrate the codec needs for the quality AVC has at the requested one
+     */
+    private static EncoderProfile scaleProfile(EncoderProfile profile, VideoCodec codec) {
+        if (codec != VideoCodec.HEVC) {
+            return profile;
+        }
+        return new EncoderProfile(profile.width, profile.height, (int) (profile.bitRate * HEVC_BITRATE_RATIO),
+                profile.frameRate, profile.iFrameInterval);
+    }
+
+    /**
+     * @return the profile of the simulcast layer, its size halved per layer
+     */
+    private static EncoderProfile scaleLayer(EncoderProfile profile, int layer) {
+        if (layer == 0) {
+            return profile;
+        }
+        int divisor = 1 << layer;
+        int bitRate = (int) (profile.bitRate / Math.pow(LAYER_BITRATE_DIVISOR, layer));
+        return new EncoderProfile(profile.width / divisor, profile.height / divisor,
+                Math.max(MIN_BITRATE, bitRate), profile.frameRate, profile.iFrameInterval);
+    }
+
+    /**
+     * @return the profile with the largest size of the same aspect ratio the camera streams to an encoder in,
+     * no larger than the profile's and smaller than the upper layer's, {@code null} if there is none
+     */
+    private EncoderProfile fitCameraSize(EncoderProfile profile, EncoderProfile upper) {
+        if (mEncoderSizes == null) {
+            return profile;
+        }
+        Size best = null;
+        for (Size size : mEncoderSizes) {
+            int width = size.getWidth();
+            int height = size.getHeight();
+            if (width <= profile.width && height <= profile.height && width < upper.width
+                    && (long) width * profile.height == (long) height * profile.width
+                    && (best == null || width > best.getWidth())) {
+                best = size;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return new EncoderProfile(best.getWidth(), best.getHeight(), profile.bitRate, profile.frameRate,
+                profile.iFrameInterval);
+    }
+
+    private boolean isEncoderSurface(Surface surface) {
+        for (EncoderLayer layer : mLayers) {
+            if (layer.getSurface() == surface) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private final CameraDevice.StateCallback mCameraCallback = new CameraDevice.StateCallback() {
@@ -87,26 +421,62 @@ public class CameraService {
         setRepeatingRequest();
     }
 
-    public void addSurface(Surface surface) {
+    public synchronized void addSurface(Surface surface) {
         pendingSurfaces.add(surface);
         updatePreviewSession();
     }
 
-    public void removeSurface(Surface surface) {
+    public synchronized void removeSurface(Surface surface) {
         pendingSurfaces.remove(surface);
         updatePreviewSession();
     }
 
-    private void updatePreviewSession() {
-        if (mSession != null) {
-            try {
-                mSession.stopRepeating();
-            } catch (CameraAccessException | IllegalStateException e) {
-                Log.w(LOG_TAG, "Error stopping capture session", e);
-            } finally {
-                mSession = null;
+    /**
+     * Retargets the repeating request if the session has all the surfaces as outputs,
+     * otherwise recreates the session which stalls the preview
+     */
+    private synchronized void updatePreviewSession() {
+        if (isOpen() && mSessionSurfaces != null && mSessionSurfaces.containsAll(pendingSurfaces)) {
+            updateTargets();
+            return;
+        }
+        createSession();
+    }
+
+    private void updateTargets() {
+        for (Surface surface : mSessionSurfaces) {
+            if (pendingSurfaces.contains(surface) && !(mIdle && isEncoderSurface(surface))) {
+                mPreviewBuilder.addTarget(surface);
+            } else {
+                mPreviewBuilder.removeTarget(surface);
             }
         }
+        if (mSession == null) {
+            //applied once configured
+            return;
+        }
+
+        if (pendingSurfaces.isEmpty()) {
+            stopRepeating();
+        } else {
+            setRepeatingRequest();
+        }
+    }
+
+    private void stopRepeating() {
+        try {
+            mSession.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(LOG_TAG, "Error stopping capture session", e);
+        }
+    }
+
+    private void createSession() {
+        if (mSession != null) {
+            stopRepeating();
+            mSession = null;
+        }
+        mSessionSurfaces = null;
         if (pendingSurfaces.size() == 0) {
             return;
         }
@@ -120,21 +490,32 @@ public class CameraService {
             }
 
             mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            final List<Surface> surfaces = new ArrayList<>(pendingSurfaces.size());
+            final Set<Surface> outputs = new HashSet<>(pendingSurfaces);
             for (Surface surface : pendingSurfaces) {
-                mPreviewBuilder.addTarget(surface);
-                surfaces.add(surface);
+                if (!(mIdle && isEncoderSurface(surface))) {
+                    mPreviewBuilder.addTarget(surface);
+                }
+            }
+            for (EncoderLayer layer : mLayers) {
+                if (layer.getSurfaceSize() != null) {
+                    //kept as an output for the streaming to start and stop without a new session
+                    outputs.add(layer.getSurface());
+                }
             }
+            mSessionSurfaces = outputs;
 
-            mCameraDevice.createCaptureSession(surfaces,
+            mCameraDevice.createCaptureSession(new ArrayList<>(outputs),
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onConfigured(CameraCaptureSession session) {
                             if (isOpen()) {
                                 synchronized (CameraService.this) {
-                                    if (isOpen()) {
+                                    //the session may have been superseded meanwhile
+                                    if (isOpen() && mSessionSurfaces == outputs) {
                                         mSession = session;
-                                        setRepeatingRequest();
+                                        if (!pendingSurfaces.isEmpty()) {
+                                            setRepeatingRequest();
+                                        }
                                     }
                                 }
                             }
@@ -176,91 +557,237 @@ public class CameraService {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+        //the sessions go with the device
+        mSession = null;
+        mSessionSurfaces = null;
     }
 
-    public void setUpMediaCodec() {
-        //ToDo: add race condition handling
-        if (mCodec != null) {
+    public synchronized void setUpMediaCodec() {
+        if (mStreaming) {
             return;
         }
 
-        Log.i(LOG_TAG, "starting encoder");
-        try {
-            mCodec = MediaCodec.createEncoderByType(MIMETYPE_VIDEO_AVC); // H264
-        } catch (Exception e) {
-            Log.w(LOG_TAG, "codec missing", e);
-            return;
+        VideoCodec codecType = mRequestedCodec;
+        EncoderProfile requested = scaleProfile(mRequestedProfile, codecType);
+        startOutputThreads();
+        while (mLayers.size() < mLayerCount) {
+            mLayers.add(new EncoderLayer(mLayers.size(), mHandler, mLayerListener, mGopCacheLimit));
         }
+        for (int i = 0; i < mLayerCount; i++) {
+            EncoderLayer layer = mLayers.get(i);
+            Size size = layer.getSurfaceSize();
+            EncoderProfile layerProfile = scaleLayer(requested, i);
+            if (i > 0) {
+                //a size the camera can't stream in fails the whole session
+                layerProfile = fitCameraSize(layerProfile, getProfile(i - 1));
+                if (layerProfile == null) {
+                    Log.w(LOG_TAG, String.format("simulcast limited to %d layers by the camera sizes", i));
+                    mLayerCount = i;
+                    break;
+                }
+            }
+            if (!layer.start(codecType, layerProfile, mLowLatency, mEncoderHandler, mFanOutHandler)) {
+                if (i == 0) {
+                    return;
+                }
+                //the device may run short of encoder instances, the clients do with fewer layers
+                Log.w(LOG_TAG, String.format("simulcast limited to %d layers", i));
+                mLayerCount = i;
+                break;
+            }
+            if (!Objects.equals(size, layer.getSurfaceSize())) {
+                //the camera stream is sized on the session creation
+                mSessionSurfaces = null;
+            }
+        }
+        mStreaming = true;
+
+        EncoderLayer top = mLayers.get(0);
+        EncoderProfile profile = top.getProfile();
+        Range<Integer> bitrates = top.getBitrateRange();
+        int minBitrate = Math.max(MIN_BITRATE, profile.bitRate / 8);
+        if (mLayerCount > 1) {
+            //the worst layer is where the slow links go
+            minBitrate = Math.min(minBitrate, getProfile(mLayerCount - 1).bitRate);
+        }
+        //the profile bitrate is where the adaptation starts, good links may take up to twice as much
+        mBitrateController = new BitrateController(profile.bitRate,
+                bitrates.clamp(minBitrate), bitrates.clamp(profile.bitRate * 2), mLayerCount == 1);
 
-        int width = 320;
-        int height = 240;
-        int colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
-        int videoBitrate = 500000;
-        int videoFramePerSecond = 20;
-        int iframeInterval = 3;
-
-        MediaFormat format = MediaFormat.createVideoFormat(MIMETYPE_VIDEO_AVC, width, height);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, videoFramePerSecond);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iframeInterval);
+        if (mMotionGating) {
+            startMotionDetection();
+        }
+        for (int i = 0; i < mLayerCount; i++) {
+            //the first one recreates the session if needed, the others retarget it
+            addSurface(mLayers.get(i).getSurface());
+        }
+        Log.i(LOG_TAG, String.format("%d encoders started", mLayerCount));
+    }
 
-        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mEncoderSurface = mCodec.createInputSurface();
-        mCodec.setCallback(mEncoderCallback);
-        mCodec.start();
+    /**
+     * Adds the motion detection stream to the targets the encoders are about to join, they start at full rate
+     */
+    private void startMotionDetection() {
+        if (mMotionReader == null) {
+            mMotionReader = ImageReader.newInstance(MOTION_WIDTH, MOTION_HEIGHT, ImageFormat.YUV_420_888, 2);
+            mMotionReader.setOnImageAvailableListener(this::onMotionImage, mHandler);
+        }
+        mMotionDetector = new MotionDetector(MOTION_HOLD_MILLIS);
+        mIdle = false;
+        pendingSurfaces.add(mMotionReader.getSurface());
+    }
 
-        addSurface(mEncoderSurface);
-        Log.i(LOG_TAG, "encoder started");
+    private void stopMotionDetection() {
+        if (mMotionReader == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mIdleCapture);
+        mMotionDetector = null;
+        mIdle = false;
+        pendingSurfaces.remove(mMotionReader.getSurface());
     }
 
-    public synchronized void stopMediaStreaming() {
-        if (mCodec != null) {
-            Log.i(LOG_TAG, "stopping encoder");
+    private void onMotionImage(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
 
-            removeSurface(mEncoderSurface);
+        boolean changed;
+        MotionDetector detector;
+        try {
+            synchronized (this) {
+                detector = mMotionDetector;
+            }
+            if (detector == null) {
+                return;
+            }
+            Image.Plane luma = image.getPlanes()[0];
+            changed = detector.onFrame(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                    luma.getRowStride(), luma.getPixelStride(), SystemClock.elapsedRealtime());
+        } finally {
+            image.close();
+        }
+        if (changed) {
+            setIdle(detector, !detector.isMotion());
+        }
+    }
 
-            mCodec.stop();
-            mCodec.release();
-            mCodec = null;
-            mEncoderSurface.release();
-            Log.i(LOG_TAG, "encoder stopped");
+    /**
+     * Takes the encoders off the repeating request while idle, the idle frames are captured one by one,
+     * and puts them back for the very next frame on motion
+     */
+    private void setIdle(MotionDetector detector, boolean idle) {
+        synchronized (this) {
+            if (detector != mMotionDetector || idle == mIdle) {
+                return;
+            }
+            Log.i(LOG_TAG, idle ? "motion stopped" : "motion started");
+            mIdle = idle;
+            updatePreviewSession();
+            mHandler.removeCallbacks(mIdleCapture);
+            if (idle) {
+                mHandler.postDelayed(mIdleCapture, getIdleFramePeriod());
+            }
         }
+        listener.onMotionChanged(!idle);
     }
 
-    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
-        @Override
-        public void onInputBufferAvailable(MediaCodec codec, int index) {
+    private long getIdleFramePeriod() {
+        return mIdleFrameRate > 0
+                ? 1000 / mIdleFrameRate
+                : 1000L * Math.max(1, getProfile(0).iFrameInterval);
+    }
 
+    private synchronized void captureIdleFrame() {
+        if (!mIdle || mSession == null || !mStreaming) {
+            return;
         }
 
-        @Override
-        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
-            ByteBuffer outByteBuffer = codec.getOutputBuffer(index);
-            listener.onEncodedBufferAvailable(info, outByteBuffer);
-            codec.releaseOutputBuffer(index, false);
+        //only the running layers are the outputs of the session
+        List<Surface> targets = new ArrayList<>(mLayerCount);
+        for (int i = 0; i < mLayerCount; i++) {
+            EncoderLayer layer = mLayers.get(i);
+            if (mSessionSurfaces == null || !mSessionSurfaces.contains(layer.getSurface())) {
+                continue;
+            }
+            if (mIdleFrameRate == 0) {
+                layer.requestEncoderSyncFrame();
+            }
+            targets.add(layer.getSurface());
+        }
+        for (Surface target : targets) {
+            mPreviewBuilder.addTarget(target);
         }
+        CaptureRequest request = mPreviewBuilder.build();
+        for (Surface target : targets) {
+            mPreviewBuilder.removeTarget(target);
+        }
+        try {
+            mSession.capture(request, null, mHandler);
+        } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "failed to capture idle frame", e);
+        }
+        mHandler.postDelayed(mIdleCapture, getIdleFramePeriod());
+    }
 
-        @Override
-        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
-            Log.i(LOG_TAG, "Error: " + e);
+    private void startOutputThreads() {
+        if (mEncoderThread != null) {
+            return;
         }
 
-        @Override
-        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
-            Log.i(LOG_TAG, "encoder output format changed: " + format);
-            csdBuffers.clear();
-            for (String csdKey : new String[]{"csd-0", "csd-1", "csd-2"}) {
-                ByteBuffer buffer = format.getByteBuffer(csdKey);
-                if (buffer == null || !buffer.hasRemaining()) {
-                    break;
-                }
-                csdBuffers.add(buffer.array());
+        mEncoderThread = new HandlerThread("EncoderOutput", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mEncoderThread.start();
+        mEncoderHandler = new Handler(mEncoderThread.getLooper());
+        mFanOutThread = new HandlerThread("MediaFanOut", Process.THREAD_PRIORITY_DISPLAY);
+        mFanOutThread.start();
+        mFanOutHandler = new Handler(mFanOutThread.getLooper());
+    }
+
+    /**
+     * Stops the encoder and its threads
+     */
+    public synchronized void release() {
+        stopMediaStreaming();
+        if (mEncoderThread != null) {
+            //the handlers stay for the callbacks already queued to find them dead rather than missing
+            mEncoderThread.quitSafely();
+            mFanOutThread.quitSafely();
+            mEncoderThread = null;
+            mFanOutThread = null;
+        }
+    }
+
+    public synchronized void stopMediaStreaming() {
+        if (mStreaming) {
+            Log.i(LOG_TAG, "stopping encoders");
+
+            stopMotionDetection();
+            for (EncoderLayer layer : mLayers) {
+                pendingSurfaces.remove(layer.getSurface());
             }
+            updatePreviewSession();
 
-            listener.onOutputFormatChanged(csdBuffers);
+            for (EncoderLayer layer : mLayers) {
+                layer.stop();
+            }
+            mStreaming = false;
+            mBitrateController = null;
+            Log.i(LOG_TAG, "encoders stopped");
         }
-    };
+    }
+
+    public interface FrameSink {
+        /**
+         * Called ahead of the cached frames, with the live ones held off
+         */
+        void onReplayStart();
+
+        /**
+         * @param frame valid for the duration of the call unless {@link PooledBuffer#retain() retained}
+         */
+        void onFrame(PooledBuffer frame, boolean keyFrame);
+    }
 
     public interface CameraServiceListener {
         void onCameraOpened(String cameraId);
@@ -269,8 +796,20 @@ public class CameraService {
 
         void openCamera(String cameraId, CameraDevice.StateCallback cameraCallback) throws CameraAccessException;
 
-        void onEncodedBufferAvailable(MediaCodec.BufferInfo info, ByteBuffer outByteBuffer);
-
-        void onOutputFormatChanged(List<byte[]> csdBuffers);
+        /**
+         * Called on the fan-out thread
+         *
+         * @param frame wall-clock timestamp followed by the encoded data, leased with
+         *              {@link ru.coolsoft.common.FrameEncoder#leaseMediaFrame}.
+         *              Valid for the duration of the call unless {@link PooledBuffer#retain() retained}
+         */
+        void onEncodedFrameAvailable(int layer, PooledBuffer frame, boolean keyFrame);
+
+        void onOutputFormatChanged(int layer, List<byte[]> csdBuffers);
+
+        /**
+         * Called with the motion gating on, see {@link #setMotionGating}
+         */
+        void onMotionChanged(boolean motion);
     }
 }
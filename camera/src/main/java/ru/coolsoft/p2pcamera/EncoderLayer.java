@@ -0,0 +1,500 @@
+package ru.coolsoft.p2pcamera;
+
+import static ru.coolsoft.common.Constants.SIZEOF_LONG;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ru.coolsoft.common.BufferPool;
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.FrameEncoder;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.enums.VideoCodec;
+
+/**
+ * An encoder of the capture session along with its parameter sets and the cached group of pictures.
+ * Simulcast runs several of them, the first one encoding the requested profile and the others downscaled copies
+ */
+class EncoderLayer {
+    private static final String LOG_TAG = EncoderLayer.class.getSimpleName();
+    private static final long MIN_SYNC_FRAME_INTERVAL_MILLIS = 500;
+    /**
+     * {@link MediaFormat#KEY_PRIORITY} value for realtime operation
+     */
+    private static final int REALTIME_PRIORITY = 0;
+    /**
+     * Seconds between sync frames once intra refresh takes over the picture recovery
+     */
+    private static final int INTRA_REFRESH_I_FRAME_INTERVAL = 60;
+    /**
+     * Latency beyond the least one seen which is taken for the wall clock stepping forward rather than the encoder
+     * running late, see {@link #toWallClockMillis}
+     */
+    private static final long MAX_ENCODER_LATENCY_US = 1000000;
+
+    final int index;
+    private final Handler handler;
+    private final Listener listener;
+
+    /**
+     * Its lock keeps the encoder callbacks off the layer's one
+     */
+    private final List<byte[]> csdBuffers = new ArrayList<>();
+    /**
+     * Its lock also orders the live frames against {@link #replayGop}
+     */
+    private final GopCache gopCache;
+
+    private MediaCodec codec;
+    /**
+     * Persistent input surface shared by the encoders of the layer in turn, so that the session keeps it
+     * as an output while the encoders come and go
+     */
+    private Surface surface;
+    /**
+     * Size of the surface as the last encoder has configured it, {@code null} till the first one does
+     */
+    private Size surfaceSize;
+    private volatile EncoderProfile profile = EncoderProfile.DEFAULT;
+    private volatile VideoCodec videoCodec = VideoCodec.AVC;
+    private Handler fanOutHandler;
+    /**
+     * Counts the encoder restarts for the frames of a stopped encoder not to reach the clients or the cache.
+     * Changed along with the cache under its lock, read by the encoder callbacks without it
+     */
+    private volatile int generation;
+    /**
+     * Difference of the wall clock and the encoder presentation timestamps, accessed on the encoder thread only
+     */
+    private long wallClockOffsetUs;
+
+    private final SyncFrameLimiter syncFrameLimiter = new SyncFrameLimiter(MIN_SYNC_FRAME_INTERVAL_MILLIS);
+    private final Runnable deferredSyncFrame = () -> {
+        if (syncFrameLimiter.onDue(SystemClock.elapsedRealtime())) {
+            requestEncoderSyncFrame();
+        }
+    };
+
+    /**
+     * @param handler       runs the deferred sync frame requests
+     * @param gopCacheLimit the most bytes of the latest group of pictures to keep for joining clients,
+     *                      {@code 0} to keep none
+     */
+    EncoderLayer(int index, Handler handler, Listener listener, int gopCacheLimit) {
+        this.index = index;
+        this.handler = handler;
+        this.listener = listener;
+        gopCache = new GopCache(gopCacheLimit);
+    }
+
+    synchronized boolean isRunning() {
+        return codec != null;
+    }
+
+    /**
+     * @return the profile the encoder runs with, as validated against its capabilities
+     */
+    EncoderProfile getProfile() {
+        return profile;
+    }
+
+    VideoCodec getVideoCodec() {
+        return videoCodec;
+    }
+
+    List<byte[]> getCsdBuffers() {
+        synchronized (csdBuffers) {
+            return Collections.unmodifiableList(new ArrayList<>(csdBuffers));
+        }
+    }
+
+    synchronized Surface getSurface() {
+        if (surface == null) {
+            surface = MediaCodec.createPersistentInputSurface();
+        }
+        return surface;
+    }
+
+    synchronized Size getSurfaceSize() {
+        return surfaceSize;
+    }
+
+    /**
+     * @return whether the running encoder fits the profile the same way it fits its current one
+     */
+    synchronized boolean fits(EncoderProfile requested, VideoCodec codecType) {
+        return codec != null && codecType == videoCodec
+                && fitProfile(requested, getVideoCapabilities(codec, codecType)).equals(profile);
+    }
+
+    /**
+     * @return bitrates the running encoder supports
+     */
+    synchronized Range<Integer> getBitrateRange() {
+        return getVideoCapabilities(codec, videoCodec).getBitrateRange();
+    }
+
+    /**
+     * @param encoderHandler runs the encoder callbacks
+     * @param fanOutHandler  takes the frames and the format changes to the {@link Listener}
+     * @return whether the encoder has started
+     */
+    synchronized boolean start(VideoCodec codecType, EncoderProfile requested, boolean lowLatency,
+                               Handler encoderHandler, Handler fanOutHandler) {
+        if (codec != null) {
+            return true;
+        }
+
+        Log.i(LOG_TAG, String.format("starting %s encoder of layer %d", codecType, index));
+        try {
+            codec = MediaCodec.createEncoderByType(codecType.mimeType);
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "codec missing", e);
+            return false;
+        }
+
+        EncoderProfile fitted = fitProfile(requested, getVideoCapabilities(codec, codecType));
+        if (!fitted.equals(requested)) {
+            Log.i(LOG_TAG, String.format("profile %s adjusted to %s", requested, fitted));
+        }
+        profile = fitted;
+        videoCodec = codecType;
+        boolean configured = false;
+        if (lowLatency) {
+            MediaFormat lowLatencyFormat = createEncoderFormat(codecType, fitted);
+            setLowLatencyKeys(lowLatencyFormat, getCodecCapabilities(codec, codecType), fitted);
+            try {
+                codec.configure(lowLatencyFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                configured = true;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(LOG_TAG, "low latency configuration rejected, falling back to the regular one", e);
+                codec.reset();
+            }
+        }
+        this.fanOutHandler = fanOutHandler;
+        wallClockOffsetUs = Long.MAX_VALUE;
+        try {
+            if (!configured) {
+                codec.configure(createEncoderFormat(codecType, fitted), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+            codec.setInputSurface(getSurface());
+            codec.setCallback(encoderCallback, encoderHandler);
+            codec.start();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            //out of encoder instances or resources, CodecException included
+            Log.w(LOG_TAG, String.format("encoder of layer %d failed to start", index), e);
+            codec.release();
+            codec = null;
+            return false;
+        }
+        surfaceSize = new Size(fitted.width, fitted.height);
+        return true;
+    }
+
+    synchronized void stop() {
+        if (codec == null) {
+            return;
+        }
+
+        handler.removeCallbacks(deferredSyncFrame);
+        codec.stop();
+        codec.release();
+        codec = null;
+        //the next encoder reports its own
+        synchronized (csdBuffers) {
+            csdBuffers.clear();
+        }
+        synchronized (gopCache) {
+            generation++;
+            gopCache.clear();
+        }
+    }
+
+    /**
+     * Hands the cached group of pictures out to the sink with the live frames held off,
+     * so that a client starting to take them from {@link CameraService.FrameSink#onReplayStart} gets no gap or overlap
+     */
+    void replayGop(CameraService.FrameSink sink) {
+        synchronized (gopCache) {
+            sink.onReplayStart();
+            for (GopCache.Frame frame : gopCache.getFrames()) {
+                sink.onFrame(frame.data, frame.keyFrame);
+            }
+        }
+    }
+
+    synchronized void setBitrate(int bitrate) {
+        if (codec == null) {
+            return;
+        }
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            codec.setParameters(params);
+            Log.d(LOG_TAG, String.format("layer %d bitrate set to %d", index, bitrate));
+        } catch (IllegalStateException e) {
+            Log.w(LOG_TAG, "failed to retune encoder bitrate", e);
+        }
+    }
+
+    /**
+     * Asks the encoder for a key frame, rate limited and coalesced with the other requests
+     * and with the key frames the encoder produces anyway
+     */
+    void requestSyncFrame() {
+        long delay = syncFrameLimiter.onRequest(SystemClock.elapsedRealtime());
+        if (delay == 0) {
+            requestEncoderSyncFrame();
+        } else if (delay > 0) {
+            handler.postDelayed(deferredSyncFrame, delay);
+        }
+    }
+
+    synchronized void requestEncoderSyncFrame() {
+        if (codec == null) {
+            return;
+        }
+
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+            Log.d(LOG_TAG, "sync frame requested of layer " + index);
+        } catch (IllegalStateException e) {
+            Log.w(LOG_TAG, "failed to request sync frame", e);
+        }
+    }
+
+    private static MediaCodecInfo.CodecCapabilities getCodecCapabilities(MediaCodec codec, VideoCodec type) {
+        return codec.getCodecInfo().getCapabilitiesForType(type.mimeType);
+    }
+
+    private static MediaCodecInfo.VideoCapabilities getVideoCapabilities(MediaCodec codec, VideoCodec type) {
+        return getCodecCapabilities(codec, type).getVideoCapabilities();
+    }
+
+    /**
+     * Adds the low latency settings the codec supports: constant bitrate, realtime priority, no frame buffering,
+     * intra refresh spreading the key frame over a period instead of periodic bursts
+     * and the parameter sets prepended to every sync frame
+     */
+    private static void setLowLatencyKeys(MediaFormat format, MediaCodecInfo.CodecCapabilities caps, EncoderProfile profile) {
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        if (encoderCaps != null && encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        }
+        format.setInteger(MediaFormat.KEY_PRIORITY, REALTIME_PRIORITY);
+
+        if (caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD,
+                    Math.max(1, profile.frameRate * Math.max(1, profile.iFrameInterval)));
+            //clients unable to request a sync frame still get one once in a while
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    Math.max(profile.iFrameInterval, INTRA_REFRESH_I_FRAME_INTERVAL));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            //an encoded frame out for every frame in
+            format.setInteger(MediaFormat.KEY_LATENCY, 1);
+        }
+        Log.i(LOG_TAG, "low latency encoder format: " + format);
+    }
+
+    /**
+     * @return the closest profile the encoder supports: the size is aligned down or falls back to the default one,
+     * the frame rate and the bitrate are clamped to the supported ranges
+     */
+    private static EncoderProfile fitProfile(EncoderProfile profile, MediaCodecInfo.VideoCapabilities caps) {
+        int width = profile.width - profile.width % caps.getWidthAlignment();
+        int height = profile.height - profile.height % caps.getHeightAlignment();
+        if (!caps.isSizeSupported(width, height)) {
+            width = EncoderProfile.DEFAULT.width;
+            height = EncoderProfile.DEFAULT.height;
+        }
+
+        int frameRate = profile.frameRate;
+        if (!caps.areSizeAndRateSupported(width, height, frameRate)) {
+            frameRate = (int) Math.max(1, Math.floor(caps.getSupportedFrameRatesFor(width, height).getUpper()));
+        }
+        int bitRate = caps.getBitrateRange().clamp(profile.bitRate);
+
+        return new EncoderProfile(width, height, bitRate, frameRate, profile.iFrameInterval);
+    }
+
+    private static MediaFormat createEncoderFormat(VideoCodec codecType, EncoderProfile profile) {
+        int colorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+
+        MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType, profile.width, profile.height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, profile.bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, profile.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, profile.iFrameInterval);
+        return format;
+    }
+
+    private final MediaCodec.Callback encoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            //taken ahead of the buffer for the frames of an encoder stopped meanwhile to be dropped by the fan-out
+            int frameGeneration = generation;
+            PooledBuffer frame;
+            try {
+                frame = takeOutputFrame(codec, index, info);
+            } catch (IllegalStateException e) {
+                //stop() runs off this thread and may release the encoder under the callback
+                Log.d(LOG_TAG, String.format("layer %d encoder stopped with an output pending", EncoderLayer.this.index), e);
+                return;
+            }
+            if (frame == null) {
+                return;
+            }
+
+            boolean keyFrame = (info.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) != 0;
+            boolean syncFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (syncFrame) {
+                syncFrameLimiter.onKeyFrame(SystemClock.elapsedRealtime());
+            }
+            //the fan-out holds the cache lock, the encoder mustn't wait for it
+            if (!fanOutHandler.post(() -> dispatchFrame(frame, syncFrame, keyFrame, frameGeneration))) {
+                //released meanwhile
+                frame.release();
+            }
+        }
+
+        /**
+         * @return the output buffer copied into a media frame, {@code null} for an empty one
+         * @throws IllegalStateException once the encoder has been stopped
+         */
+        private PooledBuffer takeOutputFrame(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            ByteBuffer outByteBuffer = codec.getOutputBuffer(index);
+            if (outByteBuffer == null || info.size == 0) {
+                codec.releaseOutputBuffer(index, false);
+                return null;
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                synchronized (csdBuffers) {
+                    if (csdBuffers.isEmpty()) {
+                        //some encoders leave the parameter sets (VPS, SPS and PPS for HEVC) out of the output format
+                        ByteBuffer csd = outByteBuffer.duplicate();
+                        byte[] csdData = new byte[csd.remaining()];
+                        csd.get(csdData);
+                        csdBuffers.add(csdData);
+                        dispatchOutputFormat();
+                    }
+                }
+            }
+
+            //the only copy of the encoded data: the frame header is stamped in front for the sockets to take it as is
+            long timestamp = toWallClockMillis(info.presentationTimeUs);
+            PooledBuffer frame = FrameEncoder.leaseMediaFrame(BufferPool.getInstance(), SIZEOF_LONG + info.size);
+            try {
+                frame.asByteBuffer()
+                        .putLong(timestamp)
+                        .put(outByteBuffer);
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                frame.release();
+                throw e;
+            }
+            return frame;
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.i(LOG_TAG, "Error: " + e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.i(LOG_TAG, String.format("layer %d output format changed: %s", index, format));
+            synchronized (csdBuffers) {
+                csdBuffers.clear();
+                for (String csdKey : new String[]{"csd-0", "csd-1", "csd-2"}) {
+                    ByteBuffer buffer = format.getByteBuffer(csdKey);
+                    if (buffer == null || !buffer.hasRemaining()) {
+                        break;
+                    }
+                    csdBuffers.add(buffer.array());
+                }
+
+                dispatchOutputFormat();
+            }
+        }
+    };
+
+    /**
+     * Maps the presentation timestamp onto the wall clock at the least encoder latency seen, so that the frames
+     * keep the capture spacing for the clients to present them at while the timestamps still tell the time
+     */
+    private long toWallClockMillis(long presentationTimeUs) {
+        long offset = System.currentTimeMillis() * 1000 - presentationTimeUs;
+        if (offset < wallClockOffsetUs || offset - wallClockOffsetUs > MAX_ENCODER_LATENCY_US) {
+            wallClockOffsetUs = offset;
+        }
+        return (presentationTimeUs + wallClockOffsetUs) / 1000;
+    }
+
+    /**
+     * Runs on the fan-out thread to keep the order with the frames
+     */
+    private void dispatchOutputFormat() {
+        List<byte[]> csd = new ArrayList<>(csdBuffers);
+        fanOutHandler.post(() -> listener.onFormatChanged(this, csd));
+    }
+
+    /**
+     * Runs on the fan-out thread, the cache lock orders the live frames against {@link #replayGop}
+     */
+    private void dispatchFrame(PooledBuffer frame, boolean syncFrame, boolean keyFrame, int frameGeneration) {
+        try {
+            synchronized (gopCache) {
+                if (frameGeneration != generation) {
+                    //the encoder has been stopped since
+                    return;
+                }
+                gopCache.add(frame, syncFrame, keyFrame);
+                listener.onFrame(this, frame, keyFrame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    interface Listener {
+        /**
+         * Called on the fan-out thread
+         *
+         * @param frame capture timestamp on the wall clock followed by the encoded data, leased with {@link FrameEncoder#leaseMediaFrame}.
+         *              Valid for the duration of the call unless {@link PooledBuffer#retain() retained}
+         */
+        void onFrame(EncoderLayer layer, PooledBuffer frame, boolean keyFrame);
+
+        /**
+         * Called on the fan-out thread
+         */
+        void onFormatChanged(EncoderLayer layer, List<byte[]> csdBuffers);
+    }
+}
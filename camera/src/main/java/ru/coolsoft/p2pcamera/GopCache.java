@@ -0,0 +1,76 @@
+package ru.coolsoft.p2pcamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ru.coolsoft.common.PooledBuffer;
+
+/**
+ * The latest group of pictures: the last sync frame and the frames encoded after it, for joining clients
+ * to start decoding right away. The frames are retained, not copied.
+ * A group outgrowing the limit is dropped as a whole since its head alone would leave the picture broken
+ * once the live frames follow, so the cache stays empty till the next sync frame
+ */
+class GopCache {
+    static class Frame {
+        final PooledBuffer data;
+        final boolean keyFrame;
+
+        private Frame(PooledBuffer data, boolean keyFrame) {
+            this.data = data;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private final int limit;
+    private final List<Frame> frames = new ArrayList<>();
+    private int size;
+
+    /**
+     * @param limitBytes the most of the encoded data to keep, {@code 0} disables the cache
+     */
+    GopCache(int limitBytes) {
+        limit = limitBytes;
+    }
+
+    /**
+     * @param syncFrame whether the frame starts a new group
+     * @param keyFrame  whether the frame is to be treated as a key one when sent
+     */
+    synchronized void add(PooledBuffer frame, boolean syncFrame, boolean keyFrame) {
+        if (syncFrame) {
+            clear();
+        } else if (frames.isEmpty()) {
+            //no group to add to
+            return;
+        }
+
+        if (size + frame.length() > limit) {
+            clear();
+            return;
+        }
+        frames.add(new Frame(frame.retain(), keyFrame));
+        size += frame.length();
+    }
+
+    /**
+     * @return the frames of the group, valid until the cache gets {@link #add added to} or {@link #clear cleared}
+     * unless {@link PooledBuffer#retain() retained}. Hold the cache lock while using them
+     */
+    synchronized List<Frame> getFrames() {
+        return Collections.unmodifiableList(frames);
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized void clear() {
+        for (Frame frame : frames) {
+            frame.data.release();
+        }
+        frames.clear();
+        size = 0;
+    }
+}
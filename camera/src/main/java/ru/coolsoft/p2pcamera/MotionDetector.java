@@ -0,0 +1,92 @@
+package ru.coolsoft.p2pcamera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tells motion in a low resolution luma plane. The plane is averaged into a coarse grid, each cell compared
+ * to a slowly adapting background, so that neither sensor noise nor gradual light changes count.
+ * Motion starts on the first frame with enough cells changed and stops once none has for the hold time.
+ * The detector starts in the motion state, so that a static scene stops it after the hold time too
+ */
+class MotionDetector {
+    static final int GRID_COLUMNS = 16;
+    static final int GRID_ROWS = 12;
+    /**
+     * Difference of a cell's mean luma from its background for the cell to count as changed
+     */
+    static final int CELL_THRESHOLD = 12;
+    static final int MIN_CHANGED_CELLS = 3;
+    /**
+     * The background follows the picture by this part of the difference per frame
+     */
+    private static final int BACKGROUND_DIVISOR = 8;
+
+    private final long holdMillis;
+    private final int[] background = new int[GRID_COLUMNS * GRID_ROWS];
+    private final int[] sums = new int[GRID_COLUMNS * GRID_ROWS];
+    private final int[] counts = new int[GRID_COLUMNS * GRID_ROWS];
+    private boolean initialized;
+    private boolean motion = true;
+    private long lastMotion;
+
+    /**
+     * @param holdMillis time without changes for the motion to stop
+     */
+    MotionDetector(long holdMillis) {
+        this.holdMillis = holdMillis;
+    }
+
+    /**
+     * @param luma the plane with rows {@code rowStride} bytes apart and pixels {@code pixelStride} bytes apart
+     * @return whether the motion has started or stopped, see {@link #isMotion}
+     */
+    synchronized boolean onFrame(ByteBuffer luma, int width, int height, int rowStride, int pixelStride, long nowMillis) {
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        for (int y = 0; y < height; y++) {
+            int rowCell = y * GRID_ROWS / height * GRID_COLUMNS;
+            int offset = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                int cell = rowCell + x * GRID_COLUMNS / width;
+                sums[cell] += luma.get(offset + x * pixelStride) & 0xFF;
+                counts[cell]++;
+            }
+        }
+
+        int changed = 0;
+        for (int i = 0; i < sums.length; i++) {
+            int mean = counts[i] == 0 ? 0 : sums[i] / counts[i];
+            if (!initialized) {
+                background[i] = mean;
+                continue;
+            }
+            int diff = mean - background[i];
+            if (Math.abs(diff) > CELL_THRESHOLD) {
+                changed++;
+            }
+            background[i] += diff / BACKGROUND_DIVISOR;
+        }
+        if (!initialized) {
+            //the hold counts from the first frame
+            lastMotion = nowMillis;
+            initialized = true;
+        }
+
+        if (changed >= MIN_CHANGED_CELLS) {
+            lastMotion = nowMillis;
+            if (!motion) {
+                motion = true;
+                return true;
+            }
+        } else if (motion && nowMillis - lastMotion >= holdMillis) {
+            motion = false;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean isMotion() {
+        return motion;
+    }
+}
@@ -12,11 +12,16 @@ import androidx.preference.PreferenceManager;
 import java.util.Collection;
 import java.util.Map;
 
+import ru.coolsoft.p2pcamera.net.StreamingServer;
+
 public class SettingsManager {
     private static SettingsManager instance;
     private final static String USER_ACCESS_PREFIX = "access";
     private final static String USER_SHADOW_PREFIX = "shadow";
     private final static String USER_PREFIX_DELIMITER = ".";
+    private final static int DEFAULT_GOP_CACHE_KB = 1024;
+    private final static int DEFAULT_IDLE_FRAME_RATE = 1;
+    private final static int MAX_SIMULCAST_LAYERS = 3;
 
     private final Context appContext;
     private final SharedPreferences preferences;
@@ -41,6 +46,68 @@ public class SettingsManager {
         return !preferences.contains(appContext.getString(R.string.pref_key_port));
     }
 
+    public StreamingServer.Engine getServerEngine() {
+        String engine = preferences.getString(appContext.getString(R.string.pref_key_server_engine), null);
+        if (engine == null) {
+            return StreamingServer.Engine.THREADED;
+        }
+        try {
+            return StreamingServer.Engine.valueOf(engine);
+        } catch (IllegalArgumentException e) {
+            return StreamingServer.Engine.THREADED;
+        }
+    }
+
+    /**
+     * @return the most bytes of the latest group of pictures to keep for joining clients, {@code 0} if disabled
+     */
+    public int getGopCacheLimit() {
+        String limit = preferences.getString(appContext.getString(R.string.pref_key_gop_cache),
+                String.valueOf(DEFAULT_GOP_CACHE_KB));
+        try {
+            return Math.max(0, Integer.parseInt(limit)) * 1024;
+        } catch (NumberFormatException e) {
+            return DEFAULT_GOP_CACHE_KB * 1024;
+        }
+    }
+
+    public boolean isLowLatencyEncodingEnabled() {
+        return preferences.getBoolean(appContext.getString(R.string.pref_key_low_latency), false);
+    }
+
+    public boolean isMotionGatingEnabled() {
+        return preferences.getBoolean(appContext.getString(R.string.pref_key_motion_gating), false);
+    }
+
+    /**
+     * @return frames per second to encode while nothing moves, {@code 0} for key frames only
+     */
+    public int getIdleFrameRate() {
+        String rate = preferences.getString(appContext.getString(R.string.pref_key_idle_frame_rate),
+                String.valueOf(DEFAULT_IDLE_FRAME_RATE));
+        try {
+            return Math.max(0, Integer.parseInt(rate));
+        } catch (NumberFormatException e) {
+            return DEFAULT_IDLE_FRAME_RATE;
+        }
+    }
+
+    /**
+     * @return number of the encoders of halving resolutions to stream, {@code 1} for no simulcast
+     */
+    public int getSimulcastLayers() {
+        String layers = preferences.getString(appContext.getString(R.string.pref_key_simulcast), "1");
+        try {
+            return Math.min(MAX_SIMULCAST_LAYERS, Math.max(1, Integer.parseInt(layers)));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    public boolean isSharedMediaKeyEnabled() {
+        return preferences.getBoolean(appContext.getString(R.string.pref_key_shared_media_key), false);
+    }
+
     public UserAccess getUserAccess(String user) {
         if (user == null) {
             return UserAccess.DENIED;
@@ -0,0 +1,65 @@
+package ru.coolsoft.p2pcamera;
+
+/**
+ * Rate limits the clients' sync frame requests and coalesces them: a request within the interval since
+ * the last sync frame is deferred till the interval passes, further requests join the deferred one,
+ * and a key frame coming out of the encoder meanwhile satisfies it
+ */
+class SyncFrameLimiter {
+    /**
+     * {@link #onRequest} result: the request joins a pending one
+     */
+    static final long COALESCED = -1;
+
+    private final long minInterval;
+    private boolean synced;
+    private long lastSync;
+    private boolean pending;
+
+    SyncFrameLimiter(long minIntervalMillis) {
+        minInterval = minIntervalMillis;
+    }
+
+    /**
+     * @return {@code 0} to request the sync frame from the encoder right away, a delay to call {@link #onDue} after
+     * or {@link #COALESCED}
+     */
+    synchronized long onRequest(long nowMillis) {
+        if (pending) {
+            return COALESCED;
+        }
+
+        long delay = synced ? lastSync + minInterval - nowMillis : 0;
+        if (delay <= 0) {
+            setSynced(nowMillis);
+            return 0;
+        }
+        pending = true;
+        return delay;
+    }
+
+    /**
+     * @return whether the deferred request is still to be passed to the encoder
+     */
+    synchronized boolean onDue(long nowMillis) {
+        if (!pending) {
+            return false;
+        }
+        pending = false;
+        setSynced(nowMillis);
+        return true;
+    }
+
+    /**
+     * Accounts a key frame the encoder has produced, whether requested or periodic
+     */
+    synchronized void onKeyFrame(long nowMillis) {
+        pending = false;
+        setSynced(nowMillis);
+    }
+
+    private void setSynced(long nowMillis) {
+        synced = true;
+        lastSync = nowMillis;
+    }
+}
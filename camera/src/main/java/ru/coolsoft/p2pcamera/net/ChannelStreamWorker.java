@@ -0,0 +1,356 @@
+package ru.coolsoft.p2pcamera.net;
+
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+import static ru.coolsoft.common.Protocol.END_OF_STREAM;
+import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CLIENT_STREAMING_ERROR;
+import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CONNECTION_CLOSED;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.net.ssl.SSLEngine;
+
+import ru.coolsoft.common.CipherBlockSizeAwareOutputStream;
+import ru.coolsoft.common.FrameEncoder;
+import ru.coolsoft.common.enums.StreamId;
+import ru.coolsoft.p2pcamera.net.StreamingServer.EventListener;
+
+/**
+ * Non-blocking channel transport served by one of the {@link SelectorServerEngine} I/O threads.
+ * All channel and parser state is touched by that thread only
+ */
+public class ChannelStreamWorker extends StreamWorker {
+    private static final String LOG_TAG = ChannelStreamWorker.class.getSimpleName();
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Stream id, command id and length
+     */
+    private static final int MAX_HEADER_SIZE = 2 + SIZEOF_INT;
+
+    private final SocketChannel channel;
+    private final TlsSession tls;
+    private final SelectorServerEngine.IoThread ioThread;
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final OutboundBuffer outbound = new OutboundBuffer();
+    private final ByteBuffer netIn;
+    /**
+     * Plain text of the incoming frames, write mode
+     */
+    private final ByteBuffer inbound = ByteBuffer.allocate(MAX_HEADER_SIZE + MEDIA_BUFFER_SIZE + 2 * READ_BUFFER_SIZE);
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private SelectionKey key;
+    private volatile boolean open = true;
+
+    private volatile CipherBlockSizeAwareOutputStream cout;
+    private volatile Cipher decryptor;
+
+    /**
+     * @param sslEngine TLS engine for the connection or {@code null} for a plain one
+     */
+    ChannelStreamWorker(SocketChannel socketChannel, SSLEngine sslEngine, SelectorServerEngine.IoThread thread,
+                        WorkerEventListener workerEventListener, EventListener eventListener,
+                        byte[] sharedMediaKey) throws IOException {
+        super(workerEventListener, eventListener, sharedMediaKey);
+        channel = socketChannel;
+        channel.configureBlocking(false);
+        tls = sslEngine == null ? null : new TlsSession(sslEngine);
+        netIn = tls == null ? ByteBuffer.allocate(READ_BUFFER_SIZE) : null;
+        ioThread = thread;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    @Override
+    boolean isTransportSecure() {
+        return tls != null;
+    }
+
+    @Override
+    void start() {
+        ioThread.execute(this, this::register);
+    }
+
+    @Override
+    public void stopWorker() {
+        Log.d(LOG_TAG, "Stopping worker");
+        running = false;
+        connected = false;
+
+        if (open) {
+            synchronized (this) {
+                if (open) {
+                    open = false;
+                    workerListener.onClientDisconnected(this);
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        sendQueue.clear();
+    }
+
+    @Override
+    void attachCiphers(Cipher encryptor, Cipher decryptor) {
+        //the stream is only written on the I/O thread, and only once the frames are queued after this call
+        cout = new CipherBlockSizeAwareOutputStream(outbound, encryptor);
+        this.decryptor = decryptor;
+    }
+
+    @Override
+    void onFrameQueued() {
+        if (writeRequested.compareAndSet(false, true)) {
+            ioThread.execute(this, () -> {
+                writeRequested.set(false);
+                onReady(SelectionKey.OP_WRITE);
+            });
+        }
+    }
+
+    private void register() {
+        try {
+            key = channel.register(ioThread.getSelector(), SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            Log.d(LOG_TAG, "Channel closed before registration", e);
+            stopWorker();
+            return;
+        }
+        connected = true;
+        listener.onClientConnected(this);
+        onReady(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Called on the I/O thread once the channel is ready for the {@code readyOps} operations
+     */
+    void onReady(int readyOps) {
+        if (!running || key == null) {
+            return;
+        }
+        try {
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                read();
+            }
+            if (running) {
+                write();
+            }
+        } catch (StreamCorruptedException | ProtocolException e) {
+            listener.onError(this, CLIENT_STREAMING_ERROR, e);
+            stopWorker();
+        } catch (EOFException e) {
+            listener.onError(this, CONNECTION_CLOSED, e);
+            stopWorker();
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Worker interrupted", e);
+            stopWorker();
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(tls != null ? tls.inbound() : netIn);
+        if (read == END_OF_STREAM) {
+            throw new EOFException();
+        }
+
+        if (tls == null) {
+            netIn.flip();
+            feed(netIn);
+            netIn.clear();
+        } else {
+            handshake();
+        }
+    }
+
+    /**
+     * Drives the TLS handshake and passes the decrypted data over to the frame parser
+     */
+    private void handshake() throws IOException {
+        while (running) {
+            boolean produced = tls.handshake();
+            ByteBuffer app = tls.unwrap();
+            if (app.hasRemaining()) {
+                feed(app);
+            } else if (!produced && tls.isStalled()) {
+                break;
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        while (running) {
+            if (tls != null) {
+                if (tls.hasOutbound()) {
+                    channel.write(tls.outbound());
+                    if (tls.hasOutbound()) {
+                        break;
+                    }
+                }
+                if (tls.isHandshaking()) {
+                    //application data waits for the handshake to complete
+                    handshake();
+                    if (tls.hasOutbound() || !tls.isHandshaking()) {
+                        continue;
+                    }
+                    break;
+                }
+            }
+
+            if (!pending.hasRemaining() && !encodeNext()) {
+                break;
+            }
+
+            if (tls != null) {
+                tls.wrap(pending);
+            } else {
+                channel.write(pending);
+                if (pending.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+
+        if (running) {
+            boolean blocked = pending.hasRemaining() || tls != null && tls.hasOutbound();
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Takes the next frame from the queue and encodes it. Frames stay in the queue while the channel is busy,
+     * so that the backlog policy applies to a slow client
+     *
+     * @return {@code false} if the queue is empty
+     */
+    private boolean encodeNext() throws IOException {
+        SendQueue.Entry entry = sendQueue.poll();
+        if (entry == null) {
+            return false;
+        }
+        outbound.reset();
+        try {
+            writeEntry(encoder, entry, outbound, cout);
+        } finally {
+            entry.recycle();
+        }
+        pending = outbound.toByteBuffer();
+        return true;
+    }
+
+    private void feed(ByteBuffer src) throws IOException {
+        while (running && src.hasRemaining()) {
+            int limit = src.limit();
+            src.limit(src.position() + Math.min(src.remaining(), READ_BUFFER_SIZE));
+            try {
+                Cipher cipher = decryptor;
+                if (cipher == null) {
+                    inbound.put(src);
+                } else {
+                    cipher.update(src, inbound);
+                }
+            } catch (ShortBufferException e) {
+                throw new StreamCorruptedException(e.getMessage());
+            } finally {
+                src.limit(limit);
+            }
+
+            inbound.flip();
+            try {
+                parse();
+            } finally {
+                inbound.compact();
+            }
+        }
+    }
+
+    /**
+     * Processes every complete frame of the inbound buffer (read mode)
+     */
+    private void parse() throws IOException {
+        while (running && inbound.hasRemaining()) {
+            int start = inbound.position();
+            StreamId streamId = StreamId.lookup(inbound.get(start) & 0xFF);
+            switch (streamId) {
+                case AUTHENTICATION:
+                    if (!isAuthExpected()) {
+                        stopWorker();
+                        return;
+                    }
+                    int authLen = getLength(start + 1);
+                    if (authLen == END_OF_STREAM || inbound.remaining() < 1 + SIZEOF_INT + authLen) {
+                        return;
+                    }
+                    byte[] data = new byte[authLen];
+                    inbound.position(start + 1 + SIZEOF_INT);
+                    inbound.get(data);
+                    processAuth(data);
+                    break;
+                case CONTROL:
+                    if (isNotReady()) {
+                        stopWorker();
+                        return;
+                    }
+                    int cmdLen = getLength(start + 2);
+                    if (cmdLen == END_OF_STREAM || inbound.remaining() < MAX_HEADER_SIZE + cmdLen) {
+                        return;
+                    }
+                    int cmdId = inbound.get(start + 1) & 0xFF;
+                    byte[] cmdData = new byte[cmdLen];
+                    inbound.position(start + MAX_HEADER_SIZE);
+                    inbound.get(cmdData);
+                    processCommand(cmdId, cmdData);
+                    break;
+                default:
+                    //padding and unexpected ids are skipped just like the blocking reader does
+                    inbound.position(start + 1);
+            }
+        }
+    }
+
+    /**
+     * @return frame payload length at {@code offset} of the inbound buffer
+     * or {@link ru.coolsoft.common.Protocol#END_OF_STREAM} if it's not received yet
+     */
+    private int getLength(int offset) throws StreamCorruptedException {
+        if (inbound.limit() < offset + SIZEOF_INT) {
+            return END_OF_STREAM;
+        }
+        int len = inbound.getInt(offset);
+        if (len < 0 || len > MEDIA_BUFFER_SIZE) {
+            throw new StreamCorruptedException("Invalid data len");
+        }
+        return len;
+    }
+
+    /**
+     * Exposes the written bytes without copying
+     */
+    private static final class OutboundBuffer extends ByteArrayOutputStream {
+        private OutboundBuffer() {
+            super(MAX_HEADER_SIZE + MEDIA_BUFFER_SIZE);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
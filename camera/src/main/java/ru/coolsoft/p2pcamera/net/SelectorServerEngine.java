@@ -0,0 +1,144 @@
+package ru.coolsoft.p2pcamera.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Fixed set of I/O threads multiplexing client channels with a {@link Selector} each
+ */
+final class SelectorServerEngine {
+    private static final String LOG_TAG = SelectorServerEngine.class.getSimpleName();
+
+    private final IoThread[] ioThreads;
+    private int next;
+
+    SelectorServerEngine(int threadCount) throws IOException {
+        ioThreads = new IoThread[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                ioThreads[i] = new IoThread(i);
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+        for (IoThread thread : ioThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the I/O thread to serve the next client
+     */
+    synchronized IoThread nextThread() {
+        IoThread thread = ioThreads[next];
+        next = (next + 1) % ioThreads.length;
+        return thread;
+    }
+
+    void stop() {
+        for (IoThread thread : ioThreads) {
+            if (thread != null) {
+                thread.shutdown();
+            }
+        }
+    }
+
+    static final class IoThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private IoThread(int index) throws IOException {
+            super(LOG_TAG + index);
+            selector = Selector.open();
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Runs {@code task} on this thread before the next selection, the worker is stopped if the task fails
+         */
+        void execute(ChannelStreamWorker worker, Runnable task) {
+            tasks.add(new Task(worker, task));
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    Task task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.runnable.run();
+                        } catch (RuntimeException e) {
+                            abort(task.worker, e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            ChannelStreamWorker worker = (ChannelStreamWorker) key.attachment();
+                            try {
+                                worker.onReady(key.readyOps());
+                            } catch (RuntimeException e) {
+                                abort(worker, e);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Selection failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((ChannelStreamWorker) key.attachment()).stopWorker();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Drops the client whose handling has failed, the thread goes on serving the others
+         */
+        private static void abort(ChannelStreamWorker worker, RuntimeException e) {
+            Log.e(LOG_TAG, "Client handling failed", e);
+            try {
+                worker.stopWorker();
+            } catch (RuntimeException stopError) {
+                Log.e(LOG_TAG, "Failed to stop the worker", stopError);
+            }
+        }
+    }
+
+    private static final class Task {
+        final ChannelStreamWorker worker;
+        final Runnable runnable;
+
+        Task(ChannelStreamWorker worker, Runnable runnable) {
+            this.worker = worker;
+            this.runnable = runnable;
+        }
+    }
+}
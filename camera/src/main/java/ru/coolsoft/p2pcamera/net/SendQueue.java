@@ -0,0 +1,203 @@
+package ru.coolsoft.p2pcamera.net;
+
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_SEALED;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.enums.StreamId;
+
+/**
+ * Per-client outgoing frame queue.
+ * Authentication and control frames are always accepted while media frames are bounded:
+ * once the media backlog is full, delta frames are dropped until the next keyframe,
+ * and a keyframe arriving to a full queue supersedes all media frames queued before it.
+ * The start of the dropping is reported once by {@link #takeKeyFrameDemand} for the key frame to be requested
+ */
+class SendQueue {
+    private final int mediaCapacity;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    private int mediaDepth;
+    private boolean awaitingKeyFrame;
+    private boolean keyFrameDemanded;
+    private boolean closed;
+    private long droppedFrames;
+    private long droppedKeyFrames;
+
+    SendQueue(int maxMediaFrames) {
+        mediaCapacity = maxMediaFrames;
+    }
+
+    static class Entry {
+        final StreamId streamId;
+        final int commandId;
+        final byte[] data;
+        final PooledBuffer frame;
+        final boolean keyFrame;
+
+        private Entry(StreamId streamId, int commandId, byte[] data, PooledBuffer frame, boolean keyFrame) {
+            this.streamId = streamId;
+            this.commandId = commandId;
+            this.data = data;
+            this.frame = frame;
+            this.keyFrame = keyFrame;
+        }
+
+        void recycle() {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    synchronized boolean offer(StreamId streamId, int commandId, byte[] data) {
+        if (closed) {
+            return false;
+        }
+        entries.addLast(new Entry(streamId, commandId, data, null, false));
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean offerMedia(PooledBuffer frame, boolean keyFrame) {
+        return offerMedia(MEDIA, frame, keyFrame);
+    }
+
+    /**
+     * @param streamId either {@link StreamId#MEDIA} or {@link StreamId#MEDIA_SEALED}
+     * @return {@code false} if the queue is closed. Dropping a frame by the policy is not a failure
+     */
+    synchronized boolean offerMedia(StreamId streamId, PooledBuffer frame, boolean keyFrame) {
+        return offerMedia(streamId, frame, keyFrame, true);
+    }
+
+    /**
+     * @param bounded whether the media backlog limit applies. Frames of a replayed group of pictures bypass it
+     *                as a delta frame dropped would break the rest of the group
+     * @return {@code false} if the queue is closed. Dropping a frame by the policy is not a failure
+     */
+    synchronized boolean offerMedia(StreamId streamId, PooledBuffer frame, boolean keyFrame, boolean bounded) {
+        if (closed) {
+            return false;
+        }
+
+        if (!bounded) {
+            if (keyFrame) {
+                awaitingKeyFrame = false;
+            }
+        } else if (!keyFrame) {
+            if (awaitingKeyFrame || mediaDepth >= mediaCapacity) {
+                if (!awaitingKeyFrame) {
+                    keyFrameDemanded = true;
+                }
+                awaitingKeyFrame = true;
+                droppedFrames++;
+                return true;
+            }
+        } else {
+            awaitingKeyFrame = false;
+            if (mediaDepth >= mediaCapacity) {
+                dropQueuedMedia();
+            }
+        }
+
+        entries.addLast(new Entry(streamId, UNUSED, null, frame.retain(), keyFrame));
+        mediaDepth++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return the next frame to send or {@code null} once the queue is closed and drained
+     */
+    synchronized Entry take() throws InterruptedException {
+        while (entries.isEmpty()) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * @return the next frame to send or {@code null} if there's none
+     */
+    synchronized Entry poll() {
+        Entry entry = entries.pollFirst();
+        if (entry != null && isMedia(entry.streamId)) {
+            mediaDepth--;
+        }
+        return entry;
+    }
+
+    /**
+     * Stops accepting new frames. Already queued ones are still handed out by {@link #take()}
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Closes the queue dropping all pending frames
+     */
+    synchronized void clear() {
+        close();
+        for (Entry entry : entries) {
+            entry.recycle();
+        }
+        entries.clear();
+        mediaDepth = 0;
+    }
+
+    /**
+     * @return whether the queue has started dropping the delta frames since the last call,
+     * the client sees no picture till the next key frame
+     */
+    synchronized boolean takeKeyFrameDemand() {
+        boolean demanded = keyFrameDemanded;
+        keyFrameDemanded = false;
+        return demanded;
+    }
+
+    synchronized int getDepth() {
+        return entries.size();
+    }
+
+    synchronized int getMediaDepth() {
+        return mediaDepth;
+    }
+
+    synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    synchronized long getDroppedKeyFrames() {
+        return droppedKeyFrames;
+    }
+
+    private static boolean isMedia(StreamId streamId) {
+        return streamId == MEDIA || streamId == MEDIA_SEALED;
+    }
+
+    private void dropQueuedMedia() {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (isMedia(entry.streamId)) {
+                iterator.remove();
+                entry.recycle();
+                droppedFrames++;
+                if (entry.keyFrame) {
+                    droppedKeyFrames++;
+                }
+            }
+        }
+        mediaDepth = 0;
+    }
+}
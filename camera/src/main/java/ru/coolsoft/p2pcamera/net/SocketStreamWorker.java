@@ -0,0 +1,172 @@
+package ru.coolsoft.p2pcamera.net;
+
+import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CLIENT_STREAMING_ERROR;
+import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CONNECTION_CLOSED;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.ProtocolException;
+import java.net.Socket;
+
+import javax.crypto.Cipher;
+import javax.net.ssl.SSLSocket;
+
+import ru.coolsoft.common.CipherBlockSizeAwareOutputStream;
+import ru.coolsoft.common.FrameDecoder;
+import ru.coolsoft.common.FrameEncoder;
+import ru.coolsoft.common.FrameReader;
+import ru.coolsoft.common.enums.StreamId;
+import ru.coolsoft.p2pcamera.net.StreamingServer.EventListener;
+
+/**
+ * Blocking socket transport: a reader and a sender thread per client
+ */
+public class SocketStreamWorker extends StreamWorker {
+    private static final String LOG_TAG = SocketStreamWorker.class.getSimpleName();
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Thread reader = new Thread(this::run, LOG_TAG);
+    private volatile Socket socket;
+    private FrameReader frames;
+    private OutputStream out;
+    private CipherBlockSizeAwareOutputStream cout;
+
+    SocketStreamWorker(Socket socket, WorkerEventListener workerEventListener, EventListener eventListener,
+                       byte[] sharedMediaKey) {
+        super(workerEventListener, eventListener, sharedMediaKey);
+        this.socket = socket;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    boolean isTransportSecure() {
+        return socket instanceof SSLSocket;
+    }
+
+    @Override
+    void start() {
+        reader.start();
+    }
+
+    @Override
+    public void stopWorker() {
+        Log.d(LOG_TAG, "Stopping worker thread");
+        running = false;
+        connected = false;
+
+        try {
+            if (socket != null) {
+                synchronized (this) {
+                    if (socket != null) {
+                        workerListener.onClientDisconnected(this);
+                        socket.close();
+                        socket = null;
+                    }
+                }
+            }
+
+            //cipher stream gets closed by the sender once the queue is closed
+            sendQueue.clear();
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+
+            if (frames != null) {
+                frames.rawStream().close();
+                frames = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void attachCiphers(Cipher encryptor, Cipher decryptor) {
+        cout = new CipherBlockSizeAwareOutputStream(out, encryptor);
+        frames.setDecryptor(decryptor);
+    }
+
+    private void sendLoop() {
+        FrameEncoder encoder = new FrameEncoder();
+        try {
+            SendQueue.Entry entry;
+            while ((entry = sendQueue.take()) != null) {
+                try {
+                    writeEntry(encoder, entry, out, cout);
+                } catch (IOException e) {
+                    listener.onError(this, CLIENT_STREAMING_ERROR, e);
+                    stopWorker();
+                    break;
+                } finally {
+                    entry.recycle();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(LOG_TAG, "Sender thread interrupted", e);
+        } finally {
+            sendQueue.clear();
+            if (cout != null) {
+                try {
+                    cout.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                cout = null;
+            }
+        }
+    }
+
+    private void run() {
+        Log.d(LOG_TAG, "Starting worker thread");
+        try {
+            frames = new FrameReader(socket.getInputStream());
+            out = socket.getOutputStream();
+            connected = true;
+            new Thread(this::sendLoop, LOG_TAG + "Sender").start();
+
+            try {
+                listener.onClientConnected(this);
+                loop:
+                while (running) {
+                    StreamId key = StreamId.lookup(frames.readByte());
+                    switch (key) {
+                        case AUTHENTICATION:
+                            if (!isAuthExpected()) {
+                                break loop;
+                            }
+                            processAuth(decoder.readData(frames.stream()));
+                            break;
+                        case CONTROL:
+                            if (isNotReady()) {
+                                break loop;
+                            }
+                            int cmdId = frames.readByte();
+                            processCommand(cmdId, decoder.readData(frames.stream()));
+                            break;
+                        case END_OF_STREAM:
+                            break loop;
+                    }
+                }
+            } catch (StreamCorruptedException | ProtocolException e) {
+                listener.onError(this, CLIENT_STREAMING_ERROR, e);
+            } catch (EOFException e) {
+                listener.onError(this, CONNECTION_CLOSED, e);
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Worker loop interrupted", e);
+            } finally {
+                stopWorker();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "I/O stream creation failed", e);
+        }
+    }
+}
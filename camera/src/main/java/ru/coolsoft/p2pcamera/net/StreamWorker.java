@@ -9,59 +9,101 @@ import static ru.coolsoft.common.Constants.CIPHER_IV;
 import static ru.coolsoft.common.Constants.CIPHER_IV_CHARSET;
 import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
 import static ru.coolsoft.common.Constants.UNUSED;
-import static ru.coolsoft.common.Protocol.createSendRoutine;
-import static ru.coolsoft.common.Protocol.readData;
+import static ru.coolsoft.common.Protocol.CAPS_ENCODER_PROFILE;
+import static ru.coolsoft.common.Protocol.CAPS_MOTION_EVENTS;
+import static ru.coolsoft.common.Protocol.CAPS_RECORD_MODE;
+import static ru.coolsoft.common.Protocol.CAPS_SHARED_MEDIA_KEY;
+import static ru.coolsoft.common.Protocol.CAPS_TRANSPORT_SECURED;
+import static ru.coolsoft.common.Protocol.CAPS_VIDEO_CODECS;
 import static ru.coolsoft.common.enums.StreamId.AUTHENTICATION;
 import static ru.coolsoft.common.enums.StreamId.CONTROL;
 import static ru.coolsoft.common.enums.StreamId.MEDIA;
-import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CLIENT_STREAMING_ERROR;
-import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.CONNECTION_CLOSED;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_SEALED;
 import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.UNKNOWN_COMMAND;
 
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 import android.util.Base64;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StreamCorruptedException;
-import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import ru.coolsoft.common.CipherBlockSizeAwareOutputStream;
 import ru.coolsoft.common.Constants;
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.FrameEncoder;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.ReceiverReport;
+import ru.coolsoft.common.RecordCipher;
+import ru.coolsoft.common.RecordOutputStream;
 import ru.coolsoft.common.enums.Command;
 import ru.coolsoft.common.enums.StreamId;
+import ru.coolsoft.common.enums.VideoCodec;
 import ru.coolsoft.p2pcamera.net.StreamingServer.EventListener;
 
-public class StreamWorker extends Thread {
+/**
+ * Server side of a client connection: authentication flow, command dispatching and outgoing frame queue.
+ * Subclasses provide the transport
+ */
+public abstract class StreamWorker {
     private static final String LOG_TAG = StreamWorker.class.getSimpleName();
-
-    private final WorkerEventListener workerListener;
-    private final EventListener listener;
-    private final Handler handler;
-    private volatile Socket socket;
-    private HandlerThread handlerThread;
-    private InputStream in;
-    private OutputStream out;
-    private CipherInputStream cin;
-    private CipherBlockSizeAwareOutputStream cout;
-    private boolean running;
+    /**
+     * Media backlog limit per client: 1.5 seconds at 20 fps
+     */
+    private static final int MAX_QUEUED_MEDIA_FRAMES = 30;
+
+    protected final WorkerEventListener workerListener;
+    protected final EventListener listener;
+    protected final SendQueue sendQueue = new SendQueue(MAX_QUEUED_MEDIA_FRAMES);
+    protected volatile boolean running;
+    /**
+     * Set once the transport is ready for authentication frames
+     */
+    protected volatile boolean connected;
+    private volatile boolean ciphered;
+    private final byte[] mediaKey;
+    private volatile boolean mediaKeyDelivered;
+    /**
+     * Set once the client relies on the verified TLS session alone, see {@link Command#TRANSPORT_SECURED}
+     */
+    private volatile boolean transportSecured;
+    /**
+     * Set once the client has asked for an encoder profile and thus knows {@link Command#PROFILE}
+     */
+    private volatile boolean profileAware;
+    /**
+     * Set once the client has listed its decoders and thus expects the codec ID in {@link Command#PROFILE}
+     */
+    private volatile boolean codecAware;
+    /**
+     * {@link ru.coolsoft.common.VideoCodecs} the client decodes, plain AVC unless listed in CAPS
+     */
+    private volatile int videoCodecs = VideoCodec.AVC.id;
+    /**
+     * Set once the client has announced it takes {@link Command#MOTION} events
+     */
+    private volatile boolean motionAware;
+    /**
+     * Set once the client gets the format and the cached group of pictures, see {@link #startMedia}
+     */
+    private volatile boolean mediaStarted;
+    /**
+     * Simulcast layer the client gets and the one it is to switch to on the layer's next key frame
+     */
+    private int layer;
+    private int requestedLayer;
 
     private enum AuthStage {
         User,
@@ -70,81 +112,184 @@ public class StreamWorker extends Thread {
         Allowed
     }
 
-    private AuthStage authStage = AuthStage.User;
+    private volatile AuthStage authStage = AuthStage.User;
     private byte[] sha;
-
-    StreamWorker(Socket socket, WorkerEventListener workerEventListener, EventListener eventListener) {
-        this.socket = socket;
+    /**
+     * Copy of the password hash kept for the {@link Command#RECORD_MODE} key derivation until CAPS arrives
+     */
+    private byte[] recordSecret;
+    private volatile RecordCipher recordEncryptor;
+    /**
+     * Replaces the ciphered stream once {@link Command#RECORD_MODE} or {@link Command#TRANSPORT_SECURED} is written.
+     * Touched by the sending thread only
+     */
+    private OutputStream switchedOut;
+
+    /**
+     * @param sharedMediaKey key to hand out to the client for {@link StreamId#MEDIA_SEALED} frames,
+     *                       {@code null} if every frame is to be ciphered for this client only
+     */
+    StreamWorker(WorkerEventListener workerEventListener, EventListener eventListener, byte[] sharedMediaKey) {
         listener = eventListener;
+        mediaKey = sharedMediaKey;
         workerListener = workerEventListener;
-
-        handlerThread = new HandlerThread(StreamWorker.class.getSimpleName());
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper(),
-                createSendRoutine(streamId -> streamId == AUTHENTICATION ? out : (cout == null ? out : cout)));
         running = true;
     }
 
-    public Socket getSocket() {
-        return socket;
-    }
+    public abstract Socket getSocket();
 
-    public void stopWorker() {
-        Log.d(LOG_TAG, "Stopping worker thread");
-        running = false;
+    /**
+     * @return whether the connection runs over TLS
+     */
+    abstract boolean isTransportSecure();
 
-        try {
-            if (socket != null) {
-                synchronized (this) {
-                    if (socket != null) {
-                        workerListener.onClientDisconnected(this);
-                        socket.close();
-                        socket = null;
-                    }
-                }
-            }
+    abstract void start();
 
-            if (cout != null) {
-                handler.post(() -> {
-                    if (cout != null) {
-                        try {
-                            cout.close();
-                            cout = null;
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            }
-            if (out != null) {
-                out.close();
-                out = null;
-            }
+    public abstract void stopWorker();
 
-            if (in != null) {
-                in.close();
-                in = null;
-            }
-            if (cin != null) {
-                cin.close();
-                cin = null;
-            }
+    /**
+     * Switches the transport to payload ciphering. Called once the user is authorized
+     */
+    abstract void attachCiphers(Cipher encryptor, Cipher decryptor);
 
-            if (handlerThread != null) {
-                handlerThread.quitSafely();
-                handlerThread = null;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Called after a frame is queued for sending
+     */
+    void onFrameQueued() {
+    }
+
+    public int getQueueDepth() {
+        return sendQueue.getDepth();
+    }
+
+    public int getQueuedMediaFrames() {
+        return sendQueue.getMediaDepth();
+    }
+
+    public long getDroppedFrames() {
+        return sendQueue.getDroppedFrames();
+    }
+
+    public long getDroppedKeyFrames() {
+        return sendQueue.getDroppedKeyFrames();
     }
 
     public boolean notifyClient(Command command, byte[] data) {
+        if (command == Command.PROFILE && !profileAware) {
+            //older clients would take it for an unknown command
+            return true;
+        }
+        if (command == Command.MOTION && !motionAware) {
+            return true;
+        }
+        if (command == Command.PROFILE && !codecAware && data.length > EncoderProfile.SIZE) {
+            //nor do they expect anything past the profile
+            data = Arrays.copyOf(data, EncoderProfile.SIZE);
+        }
         return sendData(data, CONTROL.id, command.id);
     }
 
-    public boolean sendFrame(byte[] buffer) {
-        return isNotReady() || sendData(buffer, MEDIA.id);
+    /**
+     * @return whether the client got the shared media key and expects {@link #sendSealedFrame} rather than {@link #sendFrame}
+     */
+    public boolean acceptsSealedMedia() {
+        return mediaKeyDelivered && !transportSecured;
+    }
+
+    /**
+     * @param keyFrame whether the frame can be decoded on its own. Delta frames may get dropped on a slow link
+     */
+    public boolean sendFrame(PooledBuffer frame, boolean keyFrame) {
+        return sendMedia(MEDIA, frame, keyFrame);
+    }
+
+    /**
+     * @param sealed frame encrypted with the shared media key. The same buffer is queued to every client
+     */
+    public boolean sendSealedFrame(PooledBuffer sealed, boolean keyFrame) {
+        return sendMedia(MEDIA_SEALED, sealed, keyFrame);
+    }
+
+    /**
+     * Queues a frame of the cached group of pictures to a client which has just {@link #startMedia started}
+     * getting media, regardless of the media backlog limit
+     *
+     * @param sealed whether the frame is encrypted with the shared media key
+     */
+    boolean sendReplayedFrame(PooledBuffer frame, boolean sealed, boolean keyFrame) {
+        return sendMedia(sealed ? MEDIA_SEALED : MEDIA, frame, keyFrame, false);
+    }
+
+    public boolean isMediaStarted() {
+        return mediaStarted;
+    }
+
+    /**
+     * Lets live media frames through to the client. Frames sent before are dropped
+     * as the client can't decode them before it gets the format
+     *
+     * @return {@code false} if the media has been started already
+     */
+    public synchronized boolean startMedia() {
+        if (mediaStarted) {
+            return false;
+        }
+        mediaStarted = true;
+        return true;
+    }
+
+    public synchronized int getLayer() {
+        return layer;
+    }
+
+    public synchronized int getRequestedLayer() {
+        return requestedLayer;
+    }
+
+    /**
+     * Makes the client switch to the simulcast layer on its next key frame, see {@link #takesLayerFrame}
+     */
+    public synchronized void requestLayer(int layer) {
+        requestedLayer = layer;
+    }
+
+    /**
+     * Tells whether a frame of the simulcast layer goes to the client, switching the client over to
+     * the requested layer on the layer's key frame so that the decoder gets no frame it can't decode
+     *
+     * @return {@code true} for the frames of the layer the client gets, after the switch if any
+     */
+    public synchronized boolean takesLayerFrame(int frameLayer, boolean keyFrame) {
+        if (mediaStarted && keyFrame && frameLayer == requestedLayer && frameLayer != layer) {
+            layer = frameLayer;
+        }
+        return frameLayer == layer;
+    }
+
+    private boolean sendMedia(StreamId streamId, PooledBuffer frame, boolean keyFrame) {
+        if (!mediaStarted) {
+            return true;
+        }
+        return sendMedia(streamId, frame, keyFrame, true);
+    }
+
+    private boolean sendMedia(StreamId streamId, PooledBuffer frame, boolean keyFrame, boolean bounded) {
+        if (isNotReady()) {
+            return true;
+        }
+        if (!ciphered) {
+            return false;
+        }
+
+        if (!sendQueue.offerMedia(streamId, frame, keyFrame, bounded)) {
+            return false;
+        }
+        if (sendQueue.takeKeyFrameDemand()) {
+            //the key frame interval may be up to a minute long with the intra refresh on
+            listener.onSyncFrameRequested(this);
+        }
+        onFrameQueued();
+        return true;
     }
 
     public void onAuthorizationFailed(@Constants.AuthFailureCause int cause) {
@@ -177,24 +322,38 @@ public class StreamWorker extends Thread {
         sendData(null, AUTHENTICATION.id, AUTH_OK);
     }
 
+    /**
+     * Hands the shared media key out to a client announcing it in CAPS, ahead of its first media frame
+     */
+    private void negotiateMediaKey(byte[] caps) {
+        if (mediaKey == null || mediaKeyDelivered || transportSecured
+                || caps.length == 0 || (caps[0] & CAPS_SHARED_MEDIA_KEY) == 0) {
+            return;
+        }
+        if (notifyClient(Command.MEDIA_KEY, mediaKey)) {
+            mediaKeyDelivered = true;
+        }
+    }
+
     private Exception setupCiphers() {
         SecretKeySpec secretKeySpec = new SecretKeySpec(sha, CIPHER_ALGORITHM);
         try {
             IvParameterSpec paramSpec = new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET)));
+            recordSecret = Arrays.copyOf(sha, sha.length);
             Arrays.fill(sha, (byte) 0);
 
-            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, paramSpec);
-            cout = new CipherBlockSizeAwareOutputStream(out, cipher);
+            Cipher encryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            encryptor.init(Cipher.ENCRYPT_MODE, secretKeySpec, paramSpec);
 
-            cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, paramSpec);
-            cin = new CipherInputStream(in, cipher);
+            Cipher decryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            decryptor.init(Cipher.DECRYPT_MODE, secretKeySpec, paramSpec);
+            attachCiphers(encryptor, decryptor);
         } catch (GeneralSecurityException e) {
             onAuthorizationFailed(AUTH_DENIED_SERVER_ERROR);
             Log.e(LOG_TAG, "Cipher initialization failed", e);
             return e;
         }
+        ciphered = true;
         authStage = AuthStage.Allowed;
         return null;
     }
@@ -204,101 +363,124 @@ public class StreamWorker extends Thread {
             return false;
         }
         if (args[0] == AUTHENTICATION.id) {
-            if (out == null) {
+            if (!connected) {
                 return false;
             }
-        } else if (cout == null || data == null) {
+        } else if (!ciphered || data == null) {
             return false;
         }
 
-        Message.obtain(handler, UNUSED, args[0], args.length > 1 ? args[1] : UNUSED, data).sendToTarget();
+        if (!sendQueue.offer(StreamId.lookup(args[0]), args.length > 1 ? args[1] : UNUSED, data)) {
+            return false;
+        }
+        onFrameQueued();
         return true;
     }
 
-    @Override
-    public void run() {
-        Log.d(LOG_TAG, "Starting worker thread");
-        try {
-            in = socket.getInputStream();
-            out = socket.getOutputStream();
-
-            try {
-                listener.onClientConnected(this);
-                loop:
-                while (running) {
-                    StreamId key = StreamId.lookup((cin != null ? cin : in).read());
-                    switch (key) {
-                        case AUTHENTICATION:
-                            if (!processAuth()) {
-                                break loop;
-                            }
-                            break;
-                        case CONTROL:
-                            if (isNotReady()) {
-                                break loop;
-                            }
-                            processCommand();
-                            break;
-                        case END_OF_STREAM:
-                            break loop;
-                    }
-                }
-            } catch (StreamCorruptedException | ProtocolException e) {
-                listener.onError(this, CLIENT_STREAMING_ERROR, e);
-            } catch (EOFException e) {
-                listener.onError(this, CONNECTION_CLOSED, e);
-            } catch (Exception e) {
-                Log.w(LOG_TAG, "Worker loop interrupted", e);
-            } finally {
-                stopWorker();
+    /**
+     * Writes a queued frame to {@code out} if it's an authentication one or to {@code cout} otherwise,
+     * unless ciphering isn't set up yet. Sealed frames only pass their header through {@code cout}.
+     * Once {@link Command#RECORD_MODE} is written every further frame goes to {@code out} as a record,
+     * once {@link Command#TRANSPORT_SECURED} is written - as is
+     */
+    void writeEntry(FrameEncoder encoder, SendQueue.Entry entry, OutputStream out,
+                    CipherBlockSizeAwareOutputStream cout) throws IOException {
+        if (switchedOut != null) {
+            if (out == null) {
+                //worker stopped
+                return;
+            }
+            if (entry.streamId == MEDIA_SEALED && switchedOut instanceof RecordOutputStream) {
+                encoder.writeSealedRecord((RecordOutputStream) switchedOut, entry.frame);
+            } else {
+                writeFrame(encoder, entry, switchedOut);
+            }
+            return;
+        }
+
+        if (entry.streamId == MEDIA_SEALED) {
+            if (out != null && cout != null) {
+                encoder.writeSealedFrame(out, cout, entry.frame);
             }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "I/O stream creation failed", e);
+            return;
+        }
+
+        OutputStream os = entry.streamId == AUTHENTICATION ? out : (cout == null ? out : cout);
+        if (os == null) {
+            //worker stopped
+            return;
+        }
+        writeFrame(encoder, entry, os);
+
+        if (entry.streamId == CONTROL) {
+            if (entry.commandId == Command.RECORD_MODE.id && recordEncryptor != null) {
+                switchedOut = new RecordOutputStream(out, recordEncryptor);
+            } else if (entry.commandId == Command.TRANSPORT_SECURED.id) {
+                switchedOut = out;
+            }
+        }
+    }
+
+    private static void writeFrame(FrameEncoder encoder, SendQueue.Entry entry, OutputStream os) throws IOException {
+        if (entry.frame != null) {
+            encoder.writeFrame(os, entry.streamId, entry.commandId, entry.frame);
+        } else {
+            encoder.writeFrame(os, entry.streamId, entry.commandId,
+                    entry.data, entry.data == null ? 0 : entry.data.length);
         }
     }
 
-    private boolean isNotReady() {
+    boolean isNotReady() {
         return authStage != AuthStage.Allowed;
     }
 
-    private boolean processAuth() throws IOException {
-        switch (authStage) {
-            case User:
-                listener.onUser(this, new String(getAuthData(), StandardCharsets.UTF_8));
-                return true;
-            case Shadow:
-                sha = getAuthData();
-                listener.onShadow(this, sha);
-                return true;
-            default:
-                //Allowed - protocol violation
-                //Denied - no operations permitted
-                return false;
-        }
+    /**
+     * @return whether the client may send an authentication frame at the current stage.
+     * Otherwise it's either a protocol violation (Allowed) or no operations are permitted (Denied)
+     */
+    boolean isAuthExpected() {
+        return authStage == AuthStage.User || authStage == AuthStage.Shadow;
     }
 
-    @NonNull
-    private byte[] getAuthData() throws StreamCorruptedException, EOFException {
-        byte[] bytes = readData(in);
-        if (bytes.length == 0) {
+    void processAuth(byte[] data) throws IOException {
+        if (data.length == 0) {
             throw new StreamCorruptedException();
         }
 
-        return bytes;
+        switch (authStage) {
+            case User:
+                listener.onUser(this, new String(data, StandardCharsets.UTF_8));
+                break;
+            case Shadow:
+                sha = data;
+                listener.onShadow(this, sha);
+                break;
+        }
     }
 
-    private void processCommand() throws IOException {
-        int cmdId = cin.read();
+    void processCommand(int cmdId, byte[] data) throws IOException {
         Command cmd = Command.lookup(cmdId);
-        readData(cin);
         switch (cmd) {
             case FLASHLIGHT:
                 //ToDo: process explicit state
                 listener.onToggleFlashlight();
                 break;
             case CAPS:
+                negotiateFrameProtection(data);
+                negotiateMediaKey(data);
+                negotiateMedia(data);
                 workerListener.reportCaps(this);
                 break;
+            case RECEIVER_REPORT:
+                try {
+                    listener.onReceiverReport(this, ReceiverReport.read(ByteBuffer.wrap(data)));
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Ignoring the receiver report", e);
+                }
+                break;
+            case SYNC_FRAME:
+                listener.onSyncFrameRequested(this);
+                break;
             case END_OF_STREAM:
                 throw new EOFException();
             default:
@@ -307,6 +489,79 @@ public class StreamWorker extends Thread {
         }
     }
 
+    /**
+     * Takes the encoder profile and the decoders following the CAPS flags, if any,
+     * and passes them on to the server for validation
+     */
+    private void negotiateMedia(byte[] caps) {
+        ByteBuffer buffer = ByteBuffer.wrap(caps);
+        byte flags = buffer.hasRemaining() ? buffer.get() : 0;
+
+        EncoderProfile profile = null;
+        int codecs = videoCodecs;
+        try {
+            if ((flags & CAPS_ENCODER_PROFILE) != 0) {
+                profile = EncoderProfile.read(buffer);
+            }
+            if ((flags & CAPS_VIDEO_CODECS) != 0) {
+                codecs = buffer.get() & 0xFF;
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.w(LOG_TAG, "Ignoring the media caps", e);
+            return;
+        }
+
+        if (profile != null) {
+            profileAware = true;
+        }
+        if ((flags & CAPS_VIDEO_CODECS) != 0) {
+            codecAware = true;
+            videoCodecs = codecs;
+        }
+        if ((flags & CAPS_MOTION_EVENTS) != 0) {
+            motionAware = true;
+        }
+        listener.onMediaCapsReceived(this, profile);
+    }
+
+    /**
+     * @return the {@link ru.coolsoft.common.VideoCodecs} the client decodes
+     */
+    public int getVideoCodecs() {
+        return videoCodecs;
+    }
+
+    /**
+     * Switches frames to the client over to the bare TLS transport if the client has verified it,
+     * or to {@link RecordCipher} records if the client's CAPS flags allow.
+     * Clients unaware of the flags send no payload and keep getting the stream cipher
+     */
+    private void negotiateFrameProtection(byte[] caps) {
+        if (recordSecret == null || caps.length == 0) {
+            return;
+        }
+
+        byte[] salt = null;
+        try {
+            if ((caps[0] & CAPS_TRANSPORT_SECURED) != 0 && isTransportSecure()) {
+                transportSecured = true;
+                notifyClient(Command.TRANSPORT_SECURED, new byte[0]);
+            } else if ((caps[0] & CAPS_RECORD_MODE) != 0) {
+                salt = RecordCipher.generateSalt();
+                recordEncryptor = new RecordCipher(Cipher.ENCRYPT_MODE, recordSecret, salt);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.w(LOG_TAG, "Record cipher unavailable, keeping the stream cipher", e);
+            return;
+        } finally {
+            Arrays.fill(recordSecret, (byte) 0);
+            recordSecret = null;
+        }
+        if (salt != null) {
+            notifyClient(Command.RECORD_MODE, salt);
+        }
+    }
+
     interface WorkerEventListener {
         void reportCaps(StreamWorker worker);
 
@@ -15,18 +15,23 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -34,17 +39,27 @@ import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
 import ru.coolsoft.common.Constants;
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.MediaSealer;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.ReceiverReport;
 import ru.coolsoft.common.enums.Command;
 
 public class StreamingServer extends Thread {
     private final static String LOG_TAG = StreamingServer.class.getSimpleName();
     private final static String INSECURE_SERVER_FALLBACK_SUFFIX = ". Starting an insecure socket server";
+    private final static int IO_THREAD_COUNT = 2;
 
     private boolean running = false;
     private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private SelectorServerEngine selectorEngine;
 
     private final short serverPort;
-    private final ArrayList<StreamWorker> streams = new ArrayList<>();
+    private final Engine engine;
+    private final byte[] mediaKey;
+    private final MediaSealer mediaSealer;
+    private final List<StreamWorker> streams = new CopyOnWriteArrayList<>();
     private final EventListener serverListener;
     private final PortMappingServer mappingServer;
 
@@ -73,11 +88,29 @@ public class StreamingServer extends Thread {
         }
     };
 
-    public StreamingServer(short port, EventListener eventListener) {
+    /**
+     * @param sharedMediaKey whether to encrypt media frames once for all the clients with a key handed out on authorization
+     */
+    public StreamingServer(short port, Engine serverEngine, boolean sharedMediaKey, EventListener eventListener) {
         super(StreamingServer.class.getSimpleName());
         serverPort = port;
+        engine = serverEngine;
         serverListener = eventListener;
 
+        MediaSealer sealer = null;
+        byte[] key = null;
+        if (sharedMediaKey) {
+            key = MediaSealer.generateKey();
+            try {
+                sealer = new MediaSealer(key);
+            } catch (GeneralSecurityException e) {
+                Log.w(LOG_TAG, "Shared media cipher unavailable. Ciphering media per client", e);
+                key = null;
+            }
+        }
+        mediaKey = key;
+        mediaSealer = sealer;
+
         mappingServer = new PortMappingServer(new PortMappingServer.PortMappingListener() {
             @Override
             public void onGatewaysDiscovered(Map<InetAddress, GatewayDevice> gateways) {
@@ -113,6 +146,10 @@ public class StreamingServer extends Thread {
                 serverSocket.close();
                 serverSocket = null;
             }
+            if (serverChannel != null) {
+                serverChannel.close();
+                serverChannel = null;
+            }
             mappingServer.removeMapping(serverPort, TCP);
             mappingServer.stopServer();
         } catch (IOException e) {
@@ -121,6 +158,10 @@ public class StreamingServer extends Thread {
         for (StreamWorker worker : streams) {
             worker.stopWorker();
         }
+        if (selectorEngine != null) {
+            selectorEngine.stop();
+            selectorEngine = null;
+        }
     }
 
     public void notifyClients(Command command, byte[] data/* clientId ... */) {
@@ -131,32 +172,145 @@ public class StreamingServer extends Thread {
         }
     }
 
-    public void streamToClients(byte[] data/* clientId ... */) {
+    /**
+     * Notifies the clients getting the simulcast layer
+     */
+    public void notifyLayerClients(int layer, Command command, byte[] data) {
         for (StreamWorker worker : streams) {
-            if (!worker.sendFrame(data)) {
-                serverListener.onError(worker, Situation.CLIENT_STREAMING_ERROR, null);
+            if (worker.getLayer() == layer && !worker.notifyClient(command, data)) {
+                serverListener.onError(worker, Situation.CLIENT_NOTIFICATION_ERROR, null);
             }
         }
     }
 
+    /**
+     * Streams the frame of the simulcast layer to the clients getting the layer or switching to it
+     */
+    public void streamToClients(int layer, PooledBuffer frame, boolean keyFrame/* clientId ... */) {
+        PooledBuffer sealed = null;
+        try {
+            for (StreamWorker worker : streams) {
+                int current = worker.getLayer();
+                if (!worker.takesLayerFrame(layer, keyFrame)) {
+                    continue;
+                }
+                if (current != layer) {
+                    //the client gets the layer's format ahead of its first frame
+                    serverListener.onLayerSwitched(worker, layer);
+                }
+
+                boolean sent;
+                if (worker.acceptsSealedMedia()) {
+                    if (sealed == null) {
+                        //encrypted once for all the clients holding the shared key
+                        sealed = mediaSealer.seal(frame);
+                    }
+                    sent = worker.sendSealedFrame(sealed, keyFrame);
+                } else {
+                    sent = worker.sendFrame(frame, keyFrame);
+                }
+                if (!sent) {
+                    serverListener.onError(worker, Situation.CLIENT_STREAMING_ERROR, null);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Frame sealing failed", e);
+        } finally {
+            if (sealed != null) {
+                sealed.release();
+            }
+        }
+    }
+
+    /**
+     * Queues a cached frame to a single client which has just started getting media
+     */
+    public void replayToClient(StreamWorker worker, PooledBuffer frame, boolean keyFrame) {
+        boolean sent;
+        try {
+            if (worker.acceptsSealedMedia()) {
+                PooledBuffer sealed = mediaSealer.seal(frame);
+                try {
+                    sent = worker.sendReplayedFrame(sealed, true, keyFrame);
+                } finally {
+                    sealed.release();
+                }
+            } else {
+                sent = worker.sendReplayedFrame(frame, false, keyFrame);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(LOG_TAG, "Frame sealing failed", e);
+            return;
+        }
+        if (!sent) {
+            serverListener.onError(worker, Situation.CLIENT_STREAMING_ERROR, null);
+        }
+    }
+
+    private byte[] getMediaKey() {
+        return mediaKey == null ? null : mediaKey.clone();
+    }
+
     @Override
     public void run() {
         try {
-            serverSocket = createServerSocket();
+            SSLContext ctx = createSecureContext();
             running = true;
 
-            while (running) {
-                Socket clientSocket = serverSocket.accept();
-                StreamWorker worker = new StreamWorker(clientSocket, workerListener, serverListener);
-                streams.add(worker);
-                worker.start();
+            if (engine == Engine.SELECTOR) {
+                acceptChannels(ctx);
+            } else {
+                acceptSockets(ctx);
             }
         } catch (IOException e) {
             Log.i(LOG_TAG, "I/O interrupted while waiting for a connection", e);
         }
     }
 
-    private ServerSocket createServerSocket() throws IOException {
+    private void acceptSockets(SSLContext ctx) throws IOException {
+        if (ctx == null) {
+            serverSocket = new ServerSocket(serverPort);
+        } else {
+            SSLServerSocketFactory socketFactory = ctx.getServerSocketFactory();
+            Log.i(LOG_TAG, "Starting an SSL socket server");
+            serverSocket = socketFactory.createServerSocket(serverPort);
+        }
+
+        while (running) {
+            Socket clientSocket = serverSocket.accept();
+            StreamWorker worker = new SocketStreamWorker(clientSocket, workerListener, serverListener, getMediaKey());
+            streams.add(worker);
+            worker.start();
+        }
+    }
+
+    private void acceptChannels(SSLContext ctx) throws IOException {
+        selectorEngine = new SelectorServerEngine(IO_THREAD_COUNT);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(serverPort));
+        Log.i(LOG_TAG, ctx == null ? "Starting a channel server" : "Starting an SSL channel server");
+
+        while (running) {
+            SocketChannel clientChannel = serverChannel.accept();
+            SSLEngine sslEngine = ctx == null ? null : ctx.createSSLEngine();
+            StreamWorker worker;
+            try {
+                worker = new ChannelStreamWorker(clientChannel, sslEngine, selectorEngine.nextThread(),
+                        workerListener, serverListener, getMediaKey());
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Client channel setup failed", e);
+                clientChannel.close();
+                continue;
+            }
+            streams.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return TLS context if a private key is imported, {@code null} for an insecure server
+     */
+    private SSLContext createSecureContext() {
         boolean keyImported;
         KeyStore ksAndroid;
         try {
@@ -169,21 +323,11 @@ public class StreamingServer extends Thread {
             ksAndroid = null;
         }
 
-        SSLContext ctx;
-        if (keyImported) {
-            ctx = getSecureContext(ksAndroid);
-        } else {
-            ctx = null;
+        if (!keyImported) {
             Log.i(LOG_TAG, "Private key not found" + INSECURE_SERVER_FALLBACK_SUFFIX);
+            return null;
         }
-
-        if (!keyImported || ctx == null) {
-            return new ServerSocket(serverPort);
-        }
-
-        SSLServerSocketFactory socketFactory = ctx.getServerSocketFactory();
-        Log.i(LOG_TAG, "Starting an SSL socket server");
-        return socketFactory.createServerSocket(serverPort);
+        return getSecureContext(ksAndroid);
     }
 
     private SSLContext getSecureContext(KeyStore ks) {
@@ -261,6 +405,26 @@ public class StreamingServer extends Thread {
 
         void onToggleFlashlight();
 
+        /**
+         * Called on the client's CAPS, the decoders it supports are in {@link StreamWorker#getVideoCodecs}
+         *
+         * @param profile encoder settings the client asks for, yet to be validated against the codec,
+         *                {@code null} if the client asks for none
+         */
+        void onMediaCapsReceived(StreamWorker worker, @Nullable EncoderProfile profile);
+
+        void onReceiverReport(StreamWorker worker, ReceiverReport report);
+
+        /**
+         * Called on the client's request and once its send queue starts dropping the frames till a key frame
+         */
+        void onSyncFrameRequested(StreamWorker worker);
+
+        /**
+         * Called on the key frame the client switches to the simulcast layer on, ahead of the frame
+         */
+        void onLayerSwitched(StreamWorker worker, int layer);
+
         void notifyTorchMode();
 
         void notifyAvailability();
@@ -268,6 +432,17 @@ public class StreamingServer extends Thread {
         void onError(StreamWorker worker, Situation situation, Object details);
     }
 
+    public enum Engine {
+        /**
+         * Blocking sockets with a reader and a sender thread per client
+         */
+        THREADED,
+        /**
+         * Non-blocking channels multiplexed by a fixed set of I/O threads
+         */
+        SELECTOR
+    }
+
     public enum Situation {
         CLIENT_STREAMING_ERROR,
         CLIENT_NOTIFICATION_ERROR,
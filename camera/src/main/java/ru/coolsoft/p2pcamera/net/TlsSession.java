@@ -0,0 +1,211 @@
+package ru.coolsoft.p2pcamera.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking TLS record layer over {@link SSLEngine}.
+ * Network buffers are exposed for the owner to move bytes between them and the channel.
+ * Not thread safe - used by the I/O thread owning the connection
+ */
+final class TlsSession {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    /**
+     * Records received from the peer, write mode
+     */
+    private ByteBuffer netIn;
+    /**
+     * Records pending to the peer, read mode
+     */
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean stalled;
+
+    TlsSession(SSLEngine sslEngine) throws SSLException {
+        engine = sslEngine;
+        engine.setUseClientMode(false);
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+        engine.beginHandshake();
+    }
+
+    /**
+     * @return buffer to read the channel into
+     */
+    ByteBuffer inbound() {
+        return netIn;
+    }
+
+    /**
+     * @return buffer to write to the channel
+     */
+    ByteBuffer outbound() {
+        return netOut;
+    }
+
+    boolean hasOutbound() {
+        return netOut.hasRemaining();
+    }
+
+    boolean isHandshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.FINISHED
+                && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * @return whether the last {@link #unwrap()} consumed nothing, i.e. more input is required
+     */
+    boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * Runs the handshake steps which don't need the peer's input
+     *
+     * @return whether any handshake data was produced
+     */
+    boolean handshake() throws IOException {
+        boolean produced = false;
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    if (!wrapRecord(EMPTY)) {
+                        return produced;
+                    }
+                    produced = true;
+                    break;
+                default:
+                    return produced;
+            }
+        }
+    }
+
+    /**
+     * Decrypts records received so far
+     *
+     * @return application data in read mode, valid until the next call
+     */
+    ByteBuffer unwrap() throws IOException {
+        appIn.clear();
+        netIn.flip();
+        int start = netIn.position();
+        boolean underflow = false;
+        try {
+            loop:
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        underflow = true;
+                        break loop;
+                    case BUFFER_OVERFLOW:
+                        if (appIn.position() > 0) {
+                            //let the owner consume the data first
+                            break loop;
+                        }
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        break;
+                    case CLOSED:
+                        throw new EOFException();
+                    default:
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runDelegatedTasks();
+                        }
+                        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            break loop;
+                        }
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                            break loop;
+                        }
+                }
+            }
+            stalled = netIn.position() == start;
+        } finally {
+            netIn.compact();
+        }
+        if (underflow && !netIn.hasRemaining()) {
+            //the record is larger than the buffer
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        }
+
+        appIn.flip();
+        return appIn;
+    }
+
+    /**
+     * Encrypts as much of {@code src} as fits into the outbound buffer
+     */
+    void wrap(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && wrapRecord(src)) {
+            //keep wrapping
+        }
+    }
+
+    /**
+     * @return whether a record was produced. {@code false} means the outbound buffer should be drained first
+     */
+    private boolean wrapRecord(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    if (netOut.hasRemaining()) {
+                        return false;
+                    }
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    netOut.flip();
+                    break;
+                case CLOSED:
+                    throw new EOFException();
+                default:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    return result.bytesProduced() > 0;
+            }
+        }
+    }
+
+    /**
+     * Runs handshake computations inline. Those are rare and short compared to the session lifetime
+     */
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return buffer in write mode containing the data of {@code buffer} (in write mode)
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int required) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -8,9 +8,9 @@ import static ru.coolsoft.common.Constants.AUTH_DENIED_SERVER_ERROR;
 import static ru.coolsoft.common.Constants.CAMERA_AVAILABLE;
 import static ru.coolsoft.common.Constants.CAMERA_UNAVAILABLE;
 import static ru.coolsoft.common.Constants.SIZEOF_INT;
-import static ru.coolsoft.common.Constants.SIZEOF_LONG;
 import static ru.coolsoft.common.enums.Command.AVAILABILITY;
 import static ru.coolsoft.common.enums.Command.FORMAT;
+import static ru.coolsoft.common.enums.Command.PROFILE;
 import static ru.coolsoft.p2pcamera.net.StreamingServer.Situation.UNKNOWN_COMMAND;
 import static ru.coolsoft.p2pcamera.ui.AuthorizationDialogFragment.ADDRESS_KEY;
 import static ru.coolsoft.p2pcamera.ui.AuthorizationDialogFragment.RESULT_KEY;
@@ -73,9 +73,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.ReceiverReport;
 import ru.coolsoft.common.Supplier;
+import ru.coolsoft.common.VideoCodecs;
 import ru.coolsoft.common.enums.Command;
 import ru.coolsoft.common.enums.Flashlight;
+import ru.coolsoft.common.enums.VideoCodec;
 import ru.coolsoft.p2pcamera.CameraService;
 import ru.coolsoft.p2pcamera.R;
 import ru.coolsoft.p2pcamera.SettingsManager;
@@ -374,6 +379,7 @@ public class MainActivity extends AppCompatActivity {
         streamingServer.stopServer();
 
         ifCameraInitialized(getCurrentCameraId(), camera -> {
+            camera.release();
             if (camera.isOpen()) {
                 camera.closeCamera();
             }
@@ -433,10 +439,20 @@ public class MainActivity extends AppCompatActivity {
             final String[] cameras = cm.getCameraIdList();
             mCameras = new HashMap<>(cameras.length);
 
+            SettingsManager sm = SettingsManager.getInstance(this);
             for (String cameraID : cameras) {
                 Log.i(LOG_TAG, "cameraID: " + cameraID);
-                mCameras.put(cameraID,
-                        new CameraService(cameraID, mBackgroundHandler, cameraServiceListener));
+                CameraService camera = new CameraService(cameraID, mBackgroundHandler, cameraServiceListener,
+                        sm.getGopCacheLimit());
+                camera.setLowLatency(sm.isLowLatencyEncodingEnabled());
+                camera.setMotionGating(sm.isMotionGatingEnabled(), sm.getIdleFrameRate());
+                camera.setSimulcastLayers(sm.getSimulcastLayers());
+                StreamConfigurationMap streamConfig = cm.getCameraCharacteristics(cameraID)
+                        .get(SCALER_STREAM_CONFIGURATION_MAP);
+                if (streamConfig != null) {
+                    camera.setEncoderSizes(streamConfig.getOutputSizes(MediaCodec.class));
+                }
+                mCameras.put(cameraID, camera);
             }
         } catch (CameraAccessException e) {
             Log.e(LOG_TAG, "Camera initialization error", e);
@@ -464,24 +480,27 @@ public class MainActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onEncodedBufferAvailable(MediaCodec.BufferInfo info, ByteBuffer outByteBuffer) {
-            long now = System.currentTimeMillis();
-            byte[] outData = new byte[SIZEOF_LONG + info.size];
-            ByteBuffer outDataBuffer = ByteBuffer.wrap(outData);
-
-            outDataBuffer.putLong(now);
-            outDataBuffer.put(outByteBuffer);
-
-            streamingServer.streamToClients(outData);
+        public void onEncodedFrameAvailable(int layer, PooledBuffer frame, boolean keyFrame) {
+            streamingServer.streamToClients(layer, frame, keyFrame);
         }
 
         @Override
-        public void onOutputFormatChanged(List<byte[]> csdBuffers) {
+        public void onOutputFormatChanged(int layer, List<byte[]> csdBuffers) {
             byte[] csdData = getCodecSpecificDataArray(csdBuffers);
             if (csdData != null) {
-                streamingServer.notifyClients(FORMAT, csdData);
+                byte[] profile = ifCameraInitialized(getCurrentCameraId(),
+                        camera -> getProfileData(camera, layer), null);
+                if (profile != null) {
+                    streamingServer.notifyLayerClients(layer, PROFILE, profile);
+                }
+                streamingServer.notifyLayerClients(layer, FORMAT, csdData);
             }
         }
+
+        @Override
+        public void onMotionChanged(boolean motion) {
+            streamingServer.notifyClients(Command.MOTION, getMotionData(motion));
+        }
     };
 
     private void onTorchUnavailable() {
@@ -497,7 +516,8 @@ public class MainActivity extends AppCompatActivity {
 
     private void setupServer() {
         SettingsManager sm = SettingsManager.getInstance(MainActivity.this);
-        streamingServer = new StreamingServer(Short.parseShort(sm.getPort()), eventListener);
+        streamingServer = new StreamingServer(Short.parseShort(sm.getPort()), sm.getServerEngine(),
+                sm.isSharedMediaKeyEnabled(), eventListener);
         streamingServer.start();
 
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -610,7 +630,6 @@ public class MainActivity extends AppCompatActivity {
                 throw new ProtocolException("Unexpected shadow");
             }
             worker.onAuthorized();
-            reportCodecFormat(worker);
         }
 
         @Override
@@ -623,6 +642,7 @@ public class MainActivity extends AppCompatActivity {
         public void onClientDisconnected(StreamWorker worker) {
             clients.remove(new ClientInfo(worker));
             ifCameraInitialized(getCurrentCameraId(), camera -> {
+                camera.removeReceiver(worker);
                 if (clients.isEmpty()) {
                     camera.stopMediaStreaming();
                 }
@@ -640,6 +660,45 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
+        @Override
+        public void onMediaCapsReceived(StreamWorker worker, EncoderProfile profile) {
+            Log.d(LOG_TAG, String.format("Media caps: profile %s, codecs 0x%x", profile, worker.getVideoCodecs()));
+            VideoCodec codec = selectVideoCodec(worker);
+            //a stopped encoder starts with the profile right away, a restarted one reports the new format to every client
+            ifCameraInitialized(getCurrentCameraId(), camera -> camera.requestProfile(
+                    profile == null ? camera.getRequestedProfile() : profile, codec));
+            reportCodecFormat(worker);
+        }
+
+        @Override
+        public void onReceiverReport(StreamWorker worker, ReceiverReport report) {
+            Log.v(LOG_TAG, "Receiver report: " + report);
+            ifCameraInitialized(getCurrentCameraId(), camera -> {
+                int layer = camera.onReceiverReport(worker, worker.getRequestedLayer(), report);
+                if (layer != worker.getRequestedLayer()) {
+                    Log.i(LOG_TAG, String.format("Switching client to layer %d", layer));
+                    //the switch takes place on the layer's key frame
+                    worker.requestLayer(layer);
+                    camera.requestSyncFrame(layer);
+                }
+            });
+        }
+
+        @Override
+        public void onSyncFrameRequested(StreamWorker worker) {
+            ifCameraInitialized(getCurrentCameraId(), camera -> camera.requestSyncFrame(worker.getRequestedLayer()));
+        }
+
+        @Override
+        public void onLayerSwitched(StreamWorker worker, int layer) {
+            CameraService camera = isCameraInitialized(getCurrentCameraId());
+            byte[] csdData = camera == null ? null : getCodecSpecificDataArray(camera.getCsdBuffers(layer));
+            if (csdData != null && csdData.length > 0) {
+                worker.notifyClient(PROFILE, getProfileData(camera, layer));
+                worker.notifyClient(FORMAT, csdData);
+            }
+        }
+
         @Override
         public void notifyTorchMode() {
             streamingServer.notifyClients(Command.FLASHLIGHT,
@@ -679,21 +738,81 @@ public class MainActivity extends AppCompatActivity {
     private void reportAuthorizationGranted(StreamWorker worker, String user, SettingsManager sm) {
         String sha = sm.getUserShadow(user);
         if (sha != null) {
+            //the encoder starts and the format goes out once the client's CAPS tell the profile and the codecs
             worker.onUserKnown(sha);
-            reportCodecFormat(worker);
         } else {
             worker.onAuthorized();
         }
     }
 
+    /**
+     * @return the encoder profile followed by the codec ID as {@link Command#PROFILE} carries them
+     */
+    private static byte[] getProfileData(CameraService camera, int layer) {
+        return camera.getProfile(layer)
+                .write(ByteBuffer.allocate(EncoderProfile.SIZE + 1))
+                .put((byte) camera.getVideoCodec().id)
+                .array();
+    }
+
+    private static byte[] getMotionData(boolean motion) {
+        return new byte[]{(byte) (motion ? 1 : 0)};
+    }
+
+    /**
+     * @return the codec every client getting media and the joining one can decode. The encoder is shared,
+     * so a client unable to decode HEVC has all of them get AVC
+     */
+    private VideoCodec selectVideoCodec(StreamWorker joining) {
+        int codecs = joining.getVideoCodecs();
+        for (ClientInfo client : new ArrayList<>(clients)) {
+            if (client.streamWorker != null && client.streamWorker.isMediaStarted()) {
+                codecs &= client.streamWorker.getVideoCodecs();
+            }
+        }
+        return VideoCodecs.select(codecs);
+    }
+
     private void reportCodecFormat(StreamWorker worker) {
         ifCameraInitialized(getCurrentCameraId(), CameraService::setUpMediaCodec);
 
-        byte[] csdData = ifCameraInitialized(getCurrentCameraId(),
-                camera -> getCodecSpecificDataArray(camera.getCsdBuffers()), null);
+        CameraService camera = isCameraInitialized(getCurrentCameraId());
+        byte[] csdData = camera == null ? null : getCodecSpecificDataArray(camera.getCsdBuffers(worker.getLayer()));
         if (csdData != null && csdData.length > 0) {
+            worker.notifyClient(PROFILE, getProfileData(camera, worker.getLayer()));
             worker.notifyClient(FORMAT, csdData);
         }
+        if (camera != null && camera.isMotionGating()) {
+            worker.notifyClient(Command.MOTION, getMotionData(camera.isMotion()));
+        }
+        startMedia(worker);
+    }
+
+    /**
+     * Lets the live frames through to the client following the cached group of pictures if any
+     */
+    private void startMedia(StreamWorker worker) {
+        CameraService camera = isCameraInitialized(getCurrentCameraId());
+        if (camera == null) {
+            worker.startMedia();
+            return;
+        }
+
+        camera.replayGop(worker.getLayer(), new CameraService.FrameSink() {
+            private boolean replay;
+
+            @Override
+            public void onReplayStart() {
+                replay = worker.startMedia();
+            }
+
+            @Override
+            public void onFrame(PooledBuffer frame, boolean keyFrame) {
+                if (replay) {
+                    streamingServer.replayToClient(worker, frame, keyFrame);
+                }
+            }
+        });
     }
 
     private void setupCamera() {
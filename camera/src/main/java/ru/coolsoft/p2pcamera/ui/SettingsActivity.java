@@ -253,6 +253,25 @@ public class SettingsActivity extends AppCompatActivity {
                 return false;
             });
 
+            Preference.OnPreferenceChangeListener restartOnChange = (preference, newValue) -> {
+                setRestartRequired();
+                return true;
+            };
+            Preference enginePreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_server_engine)));
+            enginePreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference mediaKeyPreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_shared_media_key)));
+            mediaKeyPreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference gopCachePreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_gop_cache)));
+            gopCachePreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference lowLatencyPreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_low_latency)));
+            lowLatencyPreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference motionGatingPreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_motion_gating)));
+            motionGatingPreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference idleFrameRatePreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_idle_frame_rate)));
+            idleFrameRatePreference.setOnPreferenceChangeListener(restartOnChange);
+            Preference simulcastPreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_simulcast)));
+            simulcastPreference.setOnPreferenceChangeListener(restartOnChange);
+
             privateKeyPreference = Objects.requireNonNull(findPreference(getString(R.string.pref_key_private_key)));
             privateKeyPreference.setOnPreferenceClickListener(preference -> {
                 if (keyImported) {
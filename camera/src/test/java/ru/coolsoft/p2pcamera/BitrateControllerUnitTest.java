@@ -0,0 +1,98 @@
+package ru.coolsoft.p2pcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ru.coolsoft.common.ReceiverReport;
+
+public class BitrateControllerUnitTest {
+    private static final int INITIAL = 500000;
+    private static final int MIN = 100000;
+    private static final int MAX = 1000000;
+
+    private static ReceiverReport report(long bitrate, int jitterMillis, int queueDepth) {
+        return new ReceiverReport(1000, (int) (bitrate / 8), 20, jitterMillis, queueDepth);
+    }
+
+    @Test
+    public void testCongestionCutsBelowReceivedBitrate() {
+        BitrateController controller = new BitrateController(INITIAL, MIN, MAX);
+        Object client = new Object();
+
+        int bitrate = controller.onReport(client, report(300000, BitrateController.MAX_JITTER_MILLIS + 1, 0));
+        assertEquals((int) (300000 * BitrateController.DECREASE_FACTOR), bitrate);
+
+        //decoder backlog counts as congestion too, down to the floor
+        for (int i = 0; i < 20; i++) {
+            controller.onReport(client, report(MIN, 0, BitrateController.MAX_QUEUE_DEPTH + 1));
+        }
+        assertEquals(MIN, controller.getApplied());
+    }
+
+    @Test
+    public void testSaturatedLinkProbesAfterHold() {
+        BitrateController controller = new BitrateController(INITIAL, MIN, MAX);
+        Object client = new Object();
+
+        int target = controller.onReport(client, report(INITIAL, BitrateController.MAX_JITTER_MILLIS + 1, 0));
+        for (int i = 0; i < BitrateController.HOLD_REPORTS; i++) {
+            assertEquals(0, controller.onReport(client, report(target, 0, 0)));
+        }
+        assertTrue(controller.onReport(client, report(target, 0, 0)) > target);
+
+        //an idle encoder leaves the link untested
+        int applied = controller.getApplied();
+        assertEquals(0, controller.onReport(client, report(applied / 2, 0, 0)));
+
+        for (int i = 0; i < 50; i++) {
+            controller.onReport(client, report(controller.getApplied(), 0, 0));
+        }
+        assertEquals(MAX, controller.getApplied());
+    }
+
+    @Test
+    public void testSlowestClientSetsBitrate() {
+        BitrateController controller = new BitrateController(INITIAL, MIN, MAX);
+        Object fast = new Object();
+        Object slow = new Object();
+
+        controller.onReport(fast, report(INITIAL, 0, 0));
+        int slowTarget = controller.onReport(slow, report(200000, BitrateController.MAX_JITTER_MILLIS + 1, 0));
+        assertEquals((int) (200000 * BitrateController.DECREASE_FACTOR), slowTarget);
+        assertEquals(0, controller.onReport(fast, report(slowTarget, 0, 0)));
+
+        //the remaining client's own target takes over
+        assertTrue(controller.removeClient(slow) > slowTarget);
+    }
+
+    @Test
+    public void testClientOfLowerLayerProbesAtItsBitrate() {
+        BitrateController controller = new BitrateController(INITIAL, MIN, MAX);
+        Object client = new Object();
+        int layerBitrate = 150000;
+
+        //receiving all of a layer well below the target is no sign of an idle encoder
+        controller.onReport(client, report(layerBitrate, 0, 0), layerBitrate);
+        assertTrue(controller.getTarget(client) > INITIAL);
+
+        int target = controller.getTarget(client);
+        controller.onReport(client, report(layerBitrate / 2, 0, 0), layerBitrate);
+        assertEquals(target, controller.getTarget(client));
+    }
+
+    @Test
+    public void testSimulcastClientsStartFromInitialBitrate() {
+        BitrateController controller = new BitrateController(INITIAL, MIN, MAX, false);
+        Object slow = new Object();
+        assertEquals(0, controller.onReport(slow, report(MIN, BitrateController.MAX_JITTER_MILLIS + 1, 0), INITIAL));
+        assertTrue(controller.getTarget(slow) < INITIAL);
+        assertEquals(INITIAL, controller.getApplied());
+
+        //the slow link doesn't seed the next client's target
+        assertEquals(INITIAL, controller.getTarget(new Object()));
+        assertEquals(0, controller.removeClient(slow));
+        assertEquals(INITIAL, controller.getApplied());
+    }
+}
@@ -0,0 +1,64 @@
+package ru.coolsoft.p2pcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ru.coolsoft.common.BufferPool;
+import ru.coolsoft.common.PooledBuffer;
+
+public class GopCacheUnitTest {
+    private final BufferPool pool = BufferPool.getInstance();
+
+    @Test
+    public void testGroupStartsAtSyncFrame() {
+        GopCache cache = new GopCache(1024);
+        PooledBuffer config = pool.lease(16);
+        PooledBuffer first = pool.lease(100);
+        PooledBuffer delta = pool.lease(50);
+        PooledBuffer second = pool.lease(100);
+
+        //nothing to decode from before the first sync frame
+        cache.add(config, false, true);
+        assertTrue(cache.getFrames().isEmpty());
+
+        cache.add(first, true, true);
+        cache.add(delta, false, false);
+        assertEquals(2, cache.getFrames().size());
+        assertSame(first, cache.getFrames().get(0).data);
+        assertTrue(cache.getFrames().get(0).keyFrame);
+        assertEquals(150, cache.getSize());
+
+        cache.add(second, true, true);
+        assertEquals(1, cache.getFrames().size());
+        assertSame(second, cache.getFrames().get(0).data);
+        assertEquals(100, cache.getSize());
+    }
+
+    @Test
+    public void testOversizedGroupDropped() {
+        GopCache cache = new GopCache(250);
+        PooledBuffer frame = pool.lease(100);
+
+        cache.add(frame, true, true);
+        cache.add(frame, false, false);
+        cache.add(frame, false, false);
+        assertTrue(cache.getFrames().isEmpty());
+        assertEquals(0, cache.getSize());
+
+        //stays empty till the next group
+        cache.add(frame, false, false);
+        assertTrue(cache.getFrames().isEmpty());
+        cache.add(frame, true, true);
+        assertEquals(1, cache.getFrames().size());
+    }
+
+    @Test
+    public void testDisabledCacheKeepsNothing() {
+        GopCache cache = new GopCache(0);
+        cache.add(pool.lease(1), true, true);
+        assertTrue(cache.getFrames().isEmpty());
+    }
+}
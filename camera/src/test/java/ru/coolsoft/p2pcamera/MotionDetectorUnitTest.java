@@ -0,0 +1,86 @@
+package ru.coolsoft.p2pcamera;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class MotionDetectorUnitTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final long HOLD_MILLIS = 1000;
+
+    private final MotionDetector detector = new MotionDetector(HOLD_MILLIS);
+
+    @Test
+    public void testStaticSceneWithNoise() {
+        assertTrue(detector.isMotion());
+        Random random = new Random(1);
+        long stopped = -1;
+        for (int frame = 0; frame < 50; frame++) {
+            ByteBuffer plane = scene(-1);
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, (byte) (plane.get(i) + random.nextInt(9) - 4));
+            }
+            if (detector.onFrame(plane, WIDTH, HEIGHT, WIDTH, 1, frame * 50L)) {
+                assertTrue(stopped < 0);
+                stopped = frame * 50L;
+            }
+        }
+        assertTrue(stopped >= HOLD_MILLIS);
+        assertFalse(detector.isMotion());
+    }
+
+    @Test
+    public void testMotionStartsAtOnceAndStopsAfterHold() {
+        detector.onFrame(scene(-1), WIDTH, HEIGHT, WIDTH, 1, 0);
+        assertTrue(detector.onFrame(scene(-1), WIDTH, HEIGHT, WIDTH, 1, HOLD_MILLIS));
+        assertFalse(detector.isMotion());
+        assertTrue(detector.onFrame(scene(40), WIDTH, HEIGHT, WIDTH, 1, HOLD_MILLIS + 50));
+        assertTrue(detector.isMotion());
+
+        //the object stays, the background catches up with it
+        long stopped = -1;
+        for (long now = HOLD_MILLIS + 100; now < 10000 && stopped < 0; now += 50) {
+            if (detector.onFrame(scene(40), WIDTH, HEIGHT, WIDTH, 1, now)) {
+                stopped = now;
+            }
+        }
+        assertTrue(stopped >= 2 * HOLD_MILLIS + 50);
+        assertFalse(detector.isMotion());
+
+        assertTrue(detector.onFrame(scene(100), WIDTH, HEIGHT, WIDTH, 1, stopped + 50));
+    }
+
+    @Test
+    public void testRowStrideAndPixelStride() {
+        int rowStride = WIDTH * 2 + 16;
+        detector.onFrame(ByteBuffer.allocate(rowStride * HEIGHT), WIDTH, HEIGHT, rowStride, 2, 0);
+        assertTrue(detector.onFrame(ByteBuffer.allocate(rowStride * HEIGHT), WIDTH, HEIGHT, rowStride, 2, HOLD_MILLIS));
+
+        ByteBuffer plane = ByteBuffer.allocate(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                plane.put(y * rowStride + x * 2, (byte) 200);
+            }
+        }
+        assertTrue(detector.onFrame(plane, WIDTH, HEIGHT, rowStride, 2, HOLD_MILLIS + 50));
+    }
+
+    /**
+     * @return a gradient with a bright square at the given column, none if negative
+     */
+    private static ByteBuffer scene(int objectX) {
+        ByteBuffer plane = ByteBuffer.allocate(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean object = objectX >= 0 && x >= objectX && x < objectX + 30 && y >= 40 && y < 70;
+                plane.put(y * WIDTH + x, (byte) (object ? 230 : 60 + x / 4));
+            }
+        }
+        return plane;
+    }
+}
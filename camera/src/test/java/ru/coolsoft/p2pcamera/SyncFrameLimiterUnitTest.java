@@ -0,0 +1,36 @@
+package ru.coolsoft.p2pcamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static ru.coolsoft.p2pcamera.SyncFrameLimiter.COALESCED;
+
+import org.junit.Test;
+
+public class SyncFrameLimiterUnitTest {
+    private static final long INTERVAL = 500;
+
+    @Test
+    public void testRequestsWithinIntervalCoalesced() {
+        SyncFrameLimiter limiter = new SyncFrameLimiter(INTERVAL);
+        assertEquals(0, limiter.onRequest(1000));
+        assertEquals(400, limiter.onRequest(1100));
+        assertEquals(COALESCED, limiter.onRequest(1200));
+        assertEquals(COALESCED, limiter.onRequest(1300));
+
+        assertTrue(limiter.onDue(1500));
+        assertEquals(INTERVAL, limiter.onRequest(1500));
+    }
+
+    @Test
+    public void testKeyFrameSatisfiesPendingRequest() {
+        SyncFrameLimiter limiter = new SyncFrameLimiter(INTERVAL);
+        //a periodic key frame counts as the last sync
+        limiter.onKeyFrame(1000);
+        assertEquals(300, limiter.onRequest(1200));
+
+        limiter.onKeyFrame(1250);
+        assertFalse(limiter.onDue(1500));
+        assertEquals(0, limiter.onRequest(1750));
+    }
+}
@@ -0,0 +1,82 @@
+package ru.coolsoft.p2pcamera.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static ru.coolsoft.common.enums.StreamId.CONTROL;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+
+import org.junit.Test;
+
+import ru.coolsoft.common.BufferPool;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.enums.Command;
+
+public class SendQueueUnitTest {
+    private final PooledBuffer keyFrame = BufferPool.getInstance().lease(16);
+    private final PooledBuffer deltaFrame = BufferPool.getInstance().lease(16);
+
+    @Test
+    public void testDeltaFramesDroppedUntilKeyFrame() throws InterruptedException {
+        SendQueue queue = new SendQueue(2);
+        assertTrue(queue.offerMedia(keyFrame, true));
+        assertTrue(queue.offerMedia(deltaFrame, false));
+        //full: dropped along with every delta frame till the next keyframe
+        assertTrue(queue.offerMedia(deltaFrame, false));
+        assertSame(keyFrame, queue.take().frame);
+        assertTrue(queue.offerMedia(deltaFrame, false));
+        assertEquals(1, queue.getMediaDepth());
+        assertEquals(2, queue.getDroppedFrames());
+
+        assertTrue(queue.offerMedia(keyFrame, true));
+        assertEquals(2, queue.getMediaDepth());
+        assertSame(deltaFrame, queue.take().frame);
+        assertSame(keyFrame, queue.take().frame);
+    }
+
+    @Test
+    public void testKeyFrameDemandedOncePerDropping() {
+        SendQueue queue = new SendQueue(1);
+        queue.offerMedia(keyFrame, true);
+        assertFalse(queue.takeKeyFrameDemand());
+        queue.offerMedia(deltaFrame, false);
+        queue.offerMedia(deltaFrame, false);
+        assertTrue(queue.takeKeyFrameDemand());
+        assertFalse(queue.takeKeyFrameDemand());
+
+        queue.clear();
+    }
+
+    @Test
+    public void testKeyFrameSupersedesFullQueue() throws InterruptedException {
+        SendQueue queue = new SendQueue(2);
+        queue.offerMedia(keyFrame, true);
+        queue.offerMedia(deltaFrame, false);
+        queue.offer(CONTROL, Command.FLASHLIGHT.id, new byte[1]);
+        queue.offerMedia(keyFrame, true);
+
+        assertEquals(2, queue.getDroppedFrames());
+        assertEquals(1, queue.getDroppedKeyFrames());
+        assertEquals(CONTROL, queue.take().streamId);
+        assertSame(keyFrame, queue.take().frame);
+        queue.close();
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void testReplayedFramesBypassLimit() throws InterruptedException {
+        SendQueue queue = new SendQueue(2);
+        queue.offerMedia(MEDIA, keyFrame, true, false);
+        queue.offerMedia(MEDIA, deltaFrame, false, false);
+        queue.offerMedia(MEDIA, deltaFrame, false, false);
+        assertEquals(3, queue.getMediaDepth());
+        assertEquals(0, queue.getDroppedFrames());
+
+        //live frames are still bounded
+        queue.offerMedia(deltaFrame, false);
+        assertEquals(1, queue.getDroppedFrames());
+        assertSame(keyFrame, queue.take().frame);
+    }
+}
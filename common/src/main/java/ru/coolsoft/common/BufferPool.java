@@ -0,0 +1,92 @@
+package ru.coolsoft.common;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte arrays grouped into power-of-two size classes
+ * so that steady-rate media traffic is served without new allocations
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 9;   // 512 bytes
+    private static final int MAX_CLASS_SHIFT = 21;  // 2 MiB - a reassembled keyframe
+    private static final int MAX_IDLE_PER_CLASS = 8;
+    private static final int MAX_IDLE_BYTES_PER_CLASS = 1024 * 1024;
+
+    private static final BufferPool instance = new BufferPool();
+
+    private final ArrayDeque<PooledBuffer>[] sizeClasses;
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferPool() {
+        sizeClasses = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new ArrayDeque<>(getIdleLimit(i));
+        }
+    }
+
+    /**
+     * @return a buffer holding at least {@code size} bytes with its length set to {@code size}.
+     * The caller owns a single reference and must {@link PooledBuffer#release() release} it
+     */
+    public PooledBuffer lease(int size) {
+        return lease(size, 0);
+    }
+
+    /**
+     * @param headroom bytes to reserve in front of the data, see {@link PooledBuffer#offset()}
+     * @return a buffer holding at least {@code headroom + size} bytes with its length set to {@code size}.
+     * The caller owns a single reference and must {@link PooledBuffer#release() release} it
+     */
+    public PooledBuffer lease(int size, int headroom) {
+        if (size < 0 || headroom < 0) {
+            throw new IllegalArgumentException("Negative buffer size: " + size + "+" + headroom);
+        }
+
+        int capacity = headroom + size;
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass >= sizeClasses.length) {
+            return new PooledBuffer(this, capacity).lease(size, headroom);
+        }
+
+        PooledBuffer buffer;
+        ArrayDeque<PooledBuffer> idle = sizeClasses[sizeClass];
+        synchronized (idle) {
+            buffer = idle.pollLast();
+        }
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, 1 << (sizeClass + MIN_CLASS_SHIFT));
+        }
+        return buffer.lease(size, headroom);
+    }
+
+    void recycle(PooledBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass >= sizeClasses.length || capacity != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            //oversized buffers are left to GC
+            return;
+        }
+
+        ArrayDeque<PooledBuffer> idle = sizeClasses[sizeClass];
+        synchronized (idle) {
+            if (idle.size() < getIdleLimit(sizeClass)) {
+                idle.addLast(buffer);
+            }
+        }
+    }
+
+    private static int getIdleLimit(int sizeClass) {
+        return Math.max(1, Math.min(MAX_IDLE_PER_CLASS, MAX_IDLE_BYTES_PER_CLASS >> (sizeClass + MIN_CLASS_SHIFT)));
+    }
+
+    private static int getSizeClass(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+}
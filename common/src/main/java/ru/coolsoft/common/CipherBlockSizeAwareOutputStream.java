@@ -10,13 +10,15 @@ import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 
 public class CipherBlockSizeAwareOutputStream extends FilterOutputStream {
 
     private final Cipher cipher;
     private final int cipherBlockSize;
     private final byte[] ibuffer = new byte[1];
-    private byte[] obuffer;
+    private final byte[] padding;
+    private byte[] obuffer = new byte[0];
     private boolean closed;
     private int written;
 
@@ -24,6 +26,23 @@ public class CipherBlockSizeAwareOutputStream extends FilterOutputStream {
         super(os);
         cipher = c;
         cipherBlockSize = c.getBlockSize();
+        padding = new byte[getMaxPaddingLength()];
+        Arrays.fill(padding, (byte) PADDING.id);
+    }
+
+    /**
+     * @return the most padding bytes {@link #flush()} may append
+     */
+    public int getMaxPaddingLength() {
+        return 2 * cipherBlockSize;
+    }
+
+    /**
+     * @return the number of padding bytes needed to push {@code len} more bytes
+     * through the peer's {@link javax.crypto.CipherInputStream}
+     */
+    public int getPaddingLength(int len) {
+        return (cipherBlockSize - (written + len) % cipherBlockSize) % cipherBlockSize + cipherBlockSize;
     }
 
     @Override
@@ -39,19 +58,39 @@ public class CipherBlockSizeAwareOutputStream extends FilterOutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        obuffer = cipher.update(b, off, len);
-        if (obuffer != null) {
-            out.write(obuffer);
-            written = (written + len) % cipherBlockSize;
+        int outLen = cipher.getOutputSize(len);
+        if (obuffer.length < outLen) {
+            obuffer = new byte[outLen];
+        }
+
+        int ciphered;
+        try {
+            ciphered = cipher.update(b, off, len, obuffer, 0);
+        } catch (ShortBufferException e) {
+            throw new IOException(e);
         }
-        obuffer = null;
+        if (ciphered > 0) {
+            out.write(obuffer, 0, ciphered);
+        }
+        written = (written + len) % cipherBlockSize;
+    }
+
+    /**
+     * Equivalent of {@code write(b, off, len); flush()} done in a single cipher pass
+     * and a single write to the underlying stream.
+     * {@code b} must have {@link #getPaddingLength(int) getPaddingLength(len)} spare bytes
+     * after {@code off + len}, which get overwritten with padding
+     */
+    public void writeAndFlush(byte[] b, int off, int len) throws IOException {
+        int paddingLen = getPaddingLength(len);
+        Arrays.fill(b, off + len, off + len + paddingLen, (byte) PADDING.id);
+        write(b, off, len + paddingLen);
+        out.flush();
     }
 
     @Override
     public void flush() throws IOException {
-        byte[] padding = new byte[(cipherBlockSize - written) % cipherBlockSize + cipherBlockSize];
-        Arrays.fill(padding, (byte) PADDING.id);
-        write(padding, 0, padding.length);
+        write(padding, 0, getPaddingLength(0));
         out.flush();
     }
 
@@ -63,9 +102,8 @@ public class CipherBlockSizeAwareOutputStream extends FilterOutputStream {
 
         closed = true;
         try {
-            obuffer = cipher.doFinal();
+            cipher.doFinal();
         } catch (IllegalBlockSizeException | BadPaddingException e) {
-            obuffer = null;
             throw new IOException(e);
         }
         try {
@@ -74,4 +112,4 @@ public class CipherBlockSizeAwareOutputStream extends FilterOutputStream {
         }
         out.close();
     }
-}
\ No newline at end of file
+}
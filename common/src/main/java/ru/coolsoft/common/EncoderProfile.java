@@ -0,0 +1,102 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Video encoder settings a client asks for with {@link Protocol#CAPS_ENCODER_PROFILE}
+ * and the server reports back with {@link ru.coolsoft.common.enums.Command#PROFILE} once validated against the codec
+ */
+public final class EncoderProfile {
+    /**
+     * Serialized form: width, height, bitrate, frame rate and I-frame interval
+     */
+    public static final int SIZE = 5 * SIZEOF_INT;
+    public static final EncoderProfile DEFAULT = new EncoderProfile(320, 240, 500000, 20, 3);
+
+    public final int width;
+    public final int height;
+    /**
+     * bits per second
+     */
+    public final int bitRate;
+    /**
+     * frames per second
+     */
+    public final int frameRate;
+    /**
+     * seconds between key frames
+     */
+    public final int iFrameInterval;
+
+    public EncoderProfile(int width, int height, int bitRate, int frameRate, int iFrameInterval) {
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.iFrameInterval = iFrameInterval;
+    }
+
+    /**
+     * @return the profile read from the current position of the buffer
+     * @throws IllegalArgumentException if the buffer holds less than {@link #SIZE} bytes or the values are out of range
+     */
+    public static EncoderProfile read(ByteBuffer buffer) {
+        EncoderProfile profile;
+        try {
+            profile = new EncoderProfile(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated encoder profile", e);
+        }
+        if (profile.width <= 0 || profile.height <= 0 || profile.bitRate <= 0 || profile.frameRate <= 0
+                || profile.iFrameInterval < 0) {
+            throw new IllegalArgumentException("Invalid encoder profile: " + profile);
+        }
+        return profile;
+    }
+
+    public ByteBuffer write(ByteBuffer buffer) {
+        return buffer.putInt(width)
+                .putInt(height)
+                .putInt(bitRate)
+                .putInt(frameRate)
+                .putInt(iFrameInterval);
+    }
+
+    public byte[] toByteArray() {
+        return write(ByteBuffer.allocate(SIZE)).array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EncoderProfile)) {
+            return false;
+        }
+        EncoderProfile that = (EncoderProfile) o;
+        return width == that.width
+                && height == that.height
+                && bitRate == that.bitRate
+                && frameRate == that.frameRate
+                && iFrameInterval == that.iFrameInterval;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = width;
+        result = 31 * result + height;
+        result = 31 * result + bitRate;
+        result = 31 * result + frameRate;
+        result = 31 * result + iFrameInterval;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d@%dfps %dbps, I-frame every %ds", width, height, frameRate, bitRate, iFrameInterval);
+    }
+}
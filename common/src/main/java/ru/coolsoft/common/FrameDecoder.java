@@ -0,0 +1,261 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+import static ru.coolsoft.common.Protocol.END_OF_STREAM;
+import static ru.coolsoft.common.Protocol.FRAGMENT_HEADER_SIZE;
+import static ru.coolsoft.common.Protocol.MAX_ACCESS_UNIT_SIZE;
+import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+import static ru.coolsoft.common.Protocol.SEALED_HEADER_SIZE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import ru.coolsoft.common.enums.StreamId;
+
+/**
+ * Reads length-prefixed frame payloads and reassembles fragmented media access units.
+ * Frames protected by a {@link RecordCipher} are read with the {@code readRecord} family,
+ * the stream ID (and command ID) having been read by the caller in clear.
+ * Not thread safe - use one instance per receiving thread
+ */
+public class FrameDecoder {
+    private final BufferPool pool;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE);
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(2 + SIZEOF_INT);
+    /**
+     * Tag of the record being read, kept apart from the payload so that the largest access unit
+     * still fits a pooled buffer
+     */
+    private final byte[] recordTag = new byte[RecordCipher.TAG_SIZE];
+
+    private PooledBuffer accessUnit;
+    private int accessUnitFilled;
+
+    public FrameDecoder() {
+        this(BufferPool.getInstance());
+    }
+
+    public FrameDecoder(BufferPool bufferPool) {
+        pool = bufferPool;
+    }
+
+    /**
+     * @return payload leased from the pool. The caller must release it once consumed
+     */
+    public PooledBuffer readFrame(InputStream in) throws StreamCorruptedException, EOFException {
+        int len = readLength(in);
+        PooledBuffer frame = pool.lease(len);
+        try {
+            readAllBytes(in, frame.array(), 0, len);
+        } catch (EOFException e) {
+            frame.release();
+            throw e;
+        }
+        return frame;
+    }
+
+    /**
+     * @return payload copied into an array of its exact length.
+     * Meant for rare control messages which are kept by the consumer
+     */
+    public byte[] readData(InputStream in) throws StreamCorruptedException, EOFException {
+        byte[] data = new byte[readLength(in)];
+        readAllBytes(in, data, 0, data.length);
+        return data;
+    }
+
+    public void skipFrame(InputStream in) throws StreamCorruptedException, EOFException {
+        readFrame(in).release();
+    }
+
+    /**
+     * Reads a {@link ru.coolsoft.common.enums.StreamId#MEDIA_FRAGMENT} payload into the pending access unit
+     *
+     * @return the complete access unit leased from the pool once its last fragment is read,
+     * {@code null} otherwise. The caller must release it once consumed
+     */
+    public PooledBuffer readFragment(InputStream in) throws StreamCorruptedException, EOFException {
+        int len = readLength(in);
+        if (len <= FRAGMENT_HEADER_SIZE) {
+            throw new StreamCorruptedException("Invalid fragment len");
+        }
+        readAllBytes(in, headerBuffer.array(), 0, FRAGMENT_HEADER_SIZE);
+        int accessUnitLen = headerBuffer.getInt(0);
+        int offset = headerBuffer.getInt(SIZEOF_INT);
+        int chunkLen = len - FRAGMENT_HEADER_SIZE;
+
+        if (offset == 0) {
+            reset();
+            if (accessUnitLen <= 0 || accessUnitLen > MAX_ACCESS_UNIT_SIZE) {
+                throw new StreamCorruptedException("Invalid access unit len");
+            }
+            accessUnit = pool.lease(accessUnitLen);
+        }
+        if (accessUnit == null
+                || accessUnitLen != accessUnit.length()
+                || offset != accessUnitFilled
+                || chunkLen > accessUnitLen - offset) {
+            reset();
+            throw new StreamCorruptedException("Fragment out of sequence");
+        }
+
+        try {
+            readAllBytes(in, accessUnit.array(), offset, chunkLen);
+        } catch (EOFException e) {
+            reset();
+            throw e;
+        }
+        accessUnitFilled += chunkLen;
+        if (accessUnitFilled < accessUnitLen) {
+            return null;
+        }
+
+        PooledBuffer complete = accessUnit;
+        accessUnit = null;
+        accessUnitFilled = 0;
+        return complete;
+    }
+
+    /**
+     * Reads a {@link ru.coolsoft.common.enums.StreamId#MEDIA_SEALED} frame
+     *
+     * @param cin ciphered stream to read the header from
+     * @param in  stream underlying {@code cin} to read the sealed payload from
+     * @return sealed payload leased from the pool. The caller must release it once consumed
+     */
+    public PooledBuffer readSealedFrame(InputStream cin, InputStream in) throws StreamCorruptedException, EOFException {
+        int len = readLength(cin, SEALED_HEADER_SIZE + MAX_ACCESS_UNIT_SIZE);
+        PooledBuffer sealed = pool.lease(len);
+        try {
+            readAllBytes(in, sealed.array(), 0, len);
+        } catch (EOFException e) {
+            sealed.release();
+            throw e;
+        }
+        return sealed;
+    }
+
+    /**
+     * Reads and opens a record of the given stream
+     *
+     * @param commandId command of a {@link StreamId#CONTROL} record, {@link Constants#UNUSED} otherwise
+     * @return plain payload leased from the pool. The caller must release it once consumed
+     * @throws StreamCorruptedException if the record fails authentication
+     */
+    public PooledBuffer readRecord(InputStream in, RecordCipher cipher, StreamId streamId, int commandId)
+            throws StreamCorruptedException, EOFException {
+        int len = readLength(in, streamId == StreamId.MEDIA ? MAX_ACCESS_UNIT_SIZE : MEDIA_BUFFER_SIZE);
+        int headerLen = putRecordHeader(streamId, commandId, len);
+        PooledBuffer record = pool.lease(len);
+        try {
+            readAllBytes(in, record.array(), 0, len);
+            readAllBytes(in, recordTag, 0, recordTag.length);
+            cipher.open(recordHeader.array(), headerLen, record.array(), 0, len, recordTag, record.array(), 0);
+        } catch (EOFException e) {
+            record.release();
+            throw e;
+        } catch (GeneralSecurityException e) {
+            record.release();
+            throw new StreamCorruptedException("Record authentication failed");
+        }
+        return record;
+    }
+
+    /**
+     * @return opened payload copied into an array of its exact length
+     * @see #readData(InputStream)
+     */
+    public byte[] readRecordData(InputStream in, RecordCipher cipher, StreamId streamId, int commandId)
+            throws StreamCorruptedException, EOFException {
+        PooledBuffer record = readRecord(in, cipher, streamId, commandId);
+        try {
+            return Arrays.copyOf(record.array(), record.length());
+        } finally {
+            record.release();
+        }
+    }
+
+    /**
+     * Reads a {@link StreamId#MEDIA_SEALED} record: the tag covers the clear header, the sealed payload follows.
+     * The payload is authenticated by its own seal, see {@link MediaSealer#open}
+     *
+     * @return sealed payload leased from the pool. The caller must release it once consumed
+     */
+    public PooledBuffer readSealedRecord(InputStream in, RecordCipher cipher) throws StreamCorruptedException, EOFException {
+        int len = readLength(in, SEALED_HEADER_SIZE + MAX_ACCESS_UNIT_SIZE);
+        int headerLen = putRecordHeader(StreamId.MEDIA_SEALED, Constants.UNUSED, len);
+        readAllBytes(in, recordTag, 0, recordTag.length);
+        try {
+            cipher.open(recordHeader.array(), headerLen, recordTag, 0, recordTag.length, recordTag, 0);
+        } catch (GeneralSecurityException e) {
+            throw new StreamCorruptedException("Record authentication failed");
+        }
+
+        PooledBuffer sealed = pool.lease(len);
+        try {
+            readAllBytes(in, sealed.array(), 0, len);
+        } catch (EOFException e) {
+            sealed.release();
+            throw e;
+        }
+        return sealed;
+    }
+
+    /**
+     * Drops a partially reassembled access unit
+     */
+    public void reset() {
+        if (accessUnit != null) {
+            accessUnit.release();
+            accessUnit = null;
+        }
+        accessUnitFilled = 0;
+    }
+
+    private int putRecordHeader(StreamId streamId, int commandId, int len) {
+        recordHeader.clear();
+        recordHeader.put((byte) streamId.id);
+        if (commandId != Constants.UNUSED) {
+            recordHeader.put((byte) commandId);
+        }
+        recordHeader.putInt(len);
+        return recordHeader.position();
+    }
+
+    private int readLength(InputStream in) throws StreamCorruptedException, EOFException {
+        return readLength(in, MEDIA_BUFFER_SIZE);
+    }
+
+    private int readLength(InputStream in, int maxLength) throws StreamCorruptedException, EOFException {
+        readAllBytes(in, headerBuffer.array(), 0, SIZEOF_INT);
+        int len = headerBuffer.getInt(0);
+        if (len < 0 || len > maxLength) {
+            throw new StreamCorruptedException("Invalid data len");
+        }
+        return len;
+    }
+
+    private static void readAllBytes(InputStream in, byte[] buffer, int offset, int length) throws EOFException {
+        int remainder = length;
+        int acquired = offset;
+        while (remainder > 0) {
+            int read;
+            try {
+                read = in.read(buffer, acquired, remainder);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            if (read == END_OF_STREAM) {
+                throw new EOFException();
+            }
+            acquired += read;
+            remainder -= read;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.Protocol.FRAGMENT_HEADER_SIZE;
+import static ru.coolsoft.common.Protocol.MAX_ACCESS_UNIT_SIZE;
+import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+import static ru.coolsoft.common.Protocol.SEALED_HEADER_SIZE;
+import static ru.coolsoft.common.enums.StreamId.AUTHENTICATION;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_FRAGMENT;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_SEALED;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import ru.coolsoft.common.enums.StreamId;
+
+/**
+ * Writes protocol frames: {@code streamId [commandId] [length payload]}.
+ * Each frame is assembled in a single pooled buffer and handed to the output stream with one write call,
+ * so a ciphered stream runs a single cipher pass and the socket sees a single send per frame.
+ * Media payloads exceeding {@link Protocol#MEDIA_BUFFER_SIZE} are split into {@link StreamId#MEDIA_FRAGMENT} frames.
+ * Media payloads leased with {@link #leaseMediaFrame} carry their frame header in front already
+ * and are written without assembling a copy.
+ * A {@link RecordOutputStream} gets AES-GCM records instead: the clear header is authenticated,
+ * the payload is sealed together with its tag and media is never fragmented nor padded.
+ * Not thread safe - use one instance per sending thread
+ */
+public class FrameEncoder {
+    /**
+     * Headroom {@link #leaseMediaFrame} reserves for the {@link StreamId#MEDIA} frame header
+     */
+    public static final int MEDIA_HEADER_SIZE = 1 + SIZEOF_INT;
+
+    private final BufferPool pool;
+
+    public FrameEncoder() {
+        this(BufferPool.getInstance());
+    }
+
+    public FrameEncoder(BufferPool bufferPool) {
+        pool = bufferPool;
+    }
+
+    /**
+     * Leases a buffer for a {@link StreamId#MEDIA} payload of {@code len} bytes with the frame header stamped in front,
+     * so that {@link #writeFrame(OutputStream, StreamId, int, PooledBuffer)} hands the frame over to a stream
+     * straight from it. Changing the payload length afterwards drops the stamp and the frame gets assembled again
+     */
+    public static PooledBuffer leaseMediaFrame(BufferPool bufferPool, int len) {
+        PooledBuffer frame = bufferPool.lease(len, MEDIA_HEADER_SIZE);
+        ByteBuffer.wrap(frame.array())
+                .put((byte) MEDIA.id)
+                .putInt(len);
+        frame.setStamped();
+        return frame;
+    }
+
+    public void writeFrame(OutputStream out, StreamId streamId, int commandId, PooledBuffer payload) throws IOException {
+        if (payload == null) {
+            writeFrame(out, streamId, commandId, null, 0);
+        } else if (streamId == MEDIA && payload.isStamped()
+                && payload.length() <= MEDIA_BUFFER_SIZE && !(out instanceof RecordOutputStream)) {
+            //a single write of the header and payload in place: one cipher pass, no assembly copy
+            out.write(payload.array(), payload.offset() - MEDIA_HEADER_SIZE, MEDIA_HEADER_SIZE + payload.length());
+        } else {
+            writeFrame(out, streamId, commandId, payload.array(), payload.offset(), payload.length());
+        }
+    }
+
+    public void writeFrame(OutputStream out, StreamId streamId, int commandId, byte[] data, int dataLen) throws IOException {
+        writeFrame(out, streamId, commandId, data, 0, dataLen);
+    }
+
+    private void writeFrame(OutputStream out, StreamId streamId, int commandId,
+                            byte[] data, int offset, int dataLen) throws IOException {
+        if (data == null) {
+            dataLen = 0;
+        }
+
+        if (out instanceof RecordOutputStream) {
+            writeRecord((RecordOutputStream) out, streamId, commandId, data, offset, dataLen);
+        } else if (streamId == MEDIA && dataLen > MEDIA_BUFFER_SIZE) {
+            writeFragments(out, data, offset, dataLen);
+        } else {
+            writeFrame(out, streamId, commandId, data, offset, dataLen, UNUSED, UNUSED);
+        }
+    }
+
+    /**
+     * Writes a {@link StreamId#MEDIA_SEALED} frame: the header goes through the client's cipher and gets padded
+     * for the client to decrypt it without reading further, then the sealed payload follows as is
+     *
+     * @param out  stream underlying {@code cout}
+     * @param cout client's cipher stream
+     */
+    public void writeSealedFrame(OutputStream out, CipherBlockSizeAwareOutputStream cout, PooledBuffer sealed) throws IOException {
+        checkSealedLength(sealed);
+
+        int headerLen = 1 + SIZEOF_INT;
+        PooledBuffer header = pool.lease(headerLen + cout.getMaxPaddingLength());
+        try {
+            ByteBuffer.wrap(header.array())
+                    .put((byte) MEDIA_SEALED.id)
+                    .putInt(sealed.length());
+            cout.writeAndFlush(header.array(), 0, headerLen);
+        } finally {
+            header.release();
+        }
+        out.write(sealed.array(), sealed.offset(), sealed.length());
+    }
+
+    /**
+     * Writes a {@link StreamId#MEDIA_SEALED} record: the tag authenticates the clear header only
+     * and the sealed payload, authenticated by its own seal, follows as is
+     */
+    public void writeSealedRecord(RecordOutputStream rout, PooledBuffer sealed) throws IOException {
+        checkSealedLength(sealed);
+
+        int headerLen = 1 + SIZEOF_INT;
+        PooledBuffer record = pool.lease(headerLen + RecordCipher.TAG_SIZE);
+        try {
+            byte[] array = record.array();
+            ByteBuffer.wrap(array)
+                    .put((byte) MEDIA_SEALED.id)
+                    .putInt(sealed.length());
+            int tagLen = rout.getCipher().seal(array, headerLen, array, headerLen, 0, array, headerLen);
+            rout.write(array, 0, headerLen + tagLen);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            record.release();
+        }
+        rout.write(sealed.array(), sealed.offset(), sealed.length());
+    }
+
+    private void checkSealedLength(PooledBuffer sealed) throws IOException {
+        if (sealed.length() > SEALED_HEADER_SIZE + MAX_ACCESS_UNIT_SIZE) {
+            throw new IOException("Access unit too large: " + (sealed.length() - SEALED_HEADER_SIZE));
+        }
+    }
+
+    private void writeRecord(RecordOutputStream rout, StreamId streamId, int commandId,
+                             byte[] data, int offset, int dataLen) throws IOException {
+        if (dataLen > (streamId == MEDIA ? MAX_ACCESS_UNIT_SIZE : MEDIA_BUFFER_SIZE)) {
+            throw new IOException("Record too large: " + dataLen);
+        }
+
+        int headerLen = 1 + (commandId != UNUSED ? 1 : 0) + SIZEOF_INT;
+        PooledBuffer record = pool.lease(headerLen + dataLen + RecordCipher.TAG_SIZE);
+        try {
+            byte[] array = record.array();
+            ByteBuffer buffer = ByteBuffer.wrap(array);
+            buffer.put((byte) streamId.id);
+            if (commandId != UNUSED) {
+                buffer.put((byte) commandId);
+            }
+            buffer.putInt(dataLen);
+            int sealedLen = rout.getCipher().seal(array, headerLen, data, offset, dataLen, array, headerLen);
+            rout.write(array, 0, headerLen + sealedLen);
+            if (streamId != MEDIA) {
+                rout.flush();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            record.release();
+        }
+    }
+
+    private void writeFragments(OutputStream out, byte[] data, int offset, int dataLen) throws IOException {
+        if (dataLen > MAX_ACCESS_UNIT_SIZE) {
+            throw new IOException("Access unit too large: " + dataLen);
+        }
+
+        int maxChunk = MEDIA_BUFFER_SIZE - FRAGMENT_HEADER_SIZE;
+        for (int fragmentOffset = 0; fragmentOffset < dataLen; fragmentOffset += maxChunk) {
+            writeFrame(out, MEDIA_FRAGMENT, UNUSED, data, offset + fragmentOffset,
+                    Math.min(maxChunk, dataLen - fragmentOffset), dataLen, fragmentOffset);
+        }
+    }
+
+    private void writeFrame(OutputStream out, StreamId streamId, int commandId,
+                            byte[] data, int offset, int len, int accessUnitLen, int fragmentOffset) throws IOException {
+        boolean fragment = streamId == MEDIA_FRAGMENT;
+        int payloadLen = fragment ? FRAGMENT_HEADER_SIZE + len : len;
+        boolean hasLength = streamId != AUTHENTICATION || payloadLen > 0;
+        int frameLen = 1 + (commandId != UNUSED ? 1 : 0) + (hasLength ? SIZEOF_INT + payloadLen : 0);
+        boolean flush = streamId != MEDIA && !fragment;
+        CipherBlockSizeAwareOutputStream cout = out instanceof CipherBlockSizeAwareOutputStream
+                ? (CipherBlockSizeAwareOutputStream) out
+                : null;
+
+        PooledBuffer frame = pool.lease(frameLen + (flush && cout != null ? cout.getMaxPaddingLength() : 0));
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(frame.array());
+            buffer.put((byte) streamId.id);
+            if (commandId != UNUSED) {
+                buffer.put((byte) commandId);
+            }
+            if (hasLength) {
+                buffer.putInt(payloadLen);
+                if (fragment) {
+                    buffer.putInt(accessUnitLen);
+                    buffer.putInt(fragmentOffset);
+                }
+                if (len > 0) {
+                    buffer.put(data, offset, len);
+                }
+            }
+
+            if (!flush) {
+                out.write(frame.array(), 0, frameLen);
+            } else if (cout != null) {
+                cout.writeAndFlush(frame.array(), 0, frameLen);
+            } else {
+                out.write(frame.array(), 0, frameLen);
+                out.flush();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+}
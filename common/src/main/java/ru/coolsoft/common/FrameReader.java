@@ -0,0 +1,232 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Protocol.END_OF_STREAM;
+import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Receiving side of a connection: socket reads land in a reusable buffer, so stream IDs, command IDs, lengths
+ * and payloads are parsed from memory rather than read from the socket byte by byte.
+ * Once a decryptor is set, frames are decrypted from the buffer never past the cipher blocks the requested plain text
+ * spans, so that clear data following a padded frame stays available from {@link #rawStream()}
+ * (see {@link FrameEncoder#writeSealedFrame}).
+ * Not thread safe - use one instance per receiving thread.
+ * The only exception is {@link #setDecryptor} which may be called while the receiving thread awaits the next frame
+ */
+public class FrameReader {
+    private final InputStream source;
+    private final byte[] raw;
+    private int rawStart;
+    private int rawEnd;
+
+    private volatile Cipher decryptor;
+    private int blockSize;
+    private byte[] plain;
+    private int plainStart;
+    private int plainEnd;
+
+    private final InputStream rawStream = new LayerStream(false);
+    private final InputStream stream = new LayerStream(true);
+
+    public FrameReader(InputStream is) {
+        this(is, MEDIA_BUFFER_SIZE);
+    }
+
+    public FrameReader(InputStream is, int bufferSize) {
+        source = is;
+        raw = new byte[bufferSize];
+    }
+
+    /**
+     * Switches frames read from now on to the given decryptor, or back to clear if it's {@code null}.
+     * Decrypted data left unread - the padding of the last ciphered frame - is dropped on the switch back
+     */
+    public void setDecryptor(Cipher cipher) {
+        plainStart = plainEnd = 0;
+        if (cipher != null) {
+            blockSize = cipher.getBlockSize();
+            //the decryptor may release a block held back from the previous update
+            if (plain == null || plain.length < raw.length + 2 * blockSize) {
+                plain = new byte[raw.length + 2 * blockSize];
+            }
+        }
+        decryptor = cipher;
+    }
+
+    /**
+     * @return stream of the current layer: decrypted if a decryptor is set, clear otherwise
+     */
+    public InputStream stream() {
+        return stream;
+    }
+
+    /**
+     * @return stream of the clear data, regardless of the decryptor
+     */
+    public InputStream rawStream() {
+        return rawStream;
+    }
+
+    /**
+     * @return the next byte of the current layer or {@link Protocol#END_OF_STREAM}
+     */
+    public int readByte() throws IOException {
+        return stream.read();
+    }
+
+    private int readRaw(byte[] b, int off, int len) throws IOException {
+        if (rawStart == rawEnd) {
+            if (len >= raw.length) {
+                //no point in copying through the buffer
+                return source.read(b, off, len);
+            }
+            if (!refillRaw()) {
+                return END_OF_STREAM;
+            }
+        }
+
+        int available = Math.min(len, rawEnd - rawStart);
+        System.arraycopy(raw, rawStart, b, off, available);
+        rawStart += available;
+        return available;
+    }
+
+    private int readPlain(byte[] b, int off, int len) throws IOException {
+        if (plainStart == plainEnd) {
+            plainStart = plainEnd = 0;
+            decrypt(len);
+        }
+
+        int available = Math.min(len, plainEnd - plainStart);
+        System.arraycopy(plain, plainStart, b, off, available);
+        plainStart += available;
+        return available;
+    }
+
+    /**
+     * Decrypts whole blocks appending to the plain text until some is produced.
+     * The number of blocks taken at once doesn't exceed what {@code wanted} bytes of plain text span
+     */
+    private void decrypt(int wanted) throws IOException {
+        int room = Math.min(raw.length, plain.length - plainEnd - blockSize) / blockSize;
+        int blocks = Math.max(1, Math.min(room, wanted / blockSize));
+        int produced;
+        do {
+            int len = blocks * blockSize;
+            if (rawEnd - rawStart < len) {
+                compactRaw();
+                fillRaw(len);
+            }
+
+            try {
+                produced = decryptor.update(raw, rawStart, len, plain, plainEnd);
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+            rawStart += len;
+            plainEnd += produced;
+            //the decryptor may hold the last block back
+            blocks = 1;
+        } while (produced == 0);
+    }
+
+    /**
+     * Refills the drained buffer with whatever a single source read brings
+     *
+     * @return {@code false} on end of stream
+     */
+    private boolean refillRaw() throws IOException {
+        rawStart = rawEnd = 0;
+        int read = source.read(raw, 0, raw.length);
+        if (read == END_OF_STREAM) {
+            return false;
+        }
+        rawEnd = read;
+        return true;
+    }
+
+    private void compactRaw() {
+        System.arraycopy(raw, rawStart, raw, 0, rawEnd - rawStart);
+        rawEnd -= rawStart;
+        rawStart = 0;
+    }
+
+    /**
+     * Reads from the source until the buffer holds at least {@code len} bytes
+     */
+    private void fillRaw(int len) throws IOException {
+        while (rawEnd - rawStart < len) {
+            int read = source.read(raw, rawEnd, raw.length - rawEnd);
+            if (read == END_OF_STREAM) {
+                throw new EOFException();
+            }
+            rawEnd += read;
+        }
+    }
+
+    private final class LayerStream extends InputStream {
+        private final boolean current;
+
+        LayerStream(boolean currentLayer) {
+            current = currentLayer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (current && plainStart == plainEnd && rawStart == rawEnd) {
+                //await the data before choosing the layer as the decryptor may get set meanwhile
+                if (!refillRaw()) {
+                    return END_OF_STREAM;
+                }
+            }
+
+            if (current && decryptor != null) {
+                if (plainStart == plainEnd) {
+                    plainStart = plainEnd = 0;
+                    try {
+                        decrypt(1);
+                    } catch (EOFException e) {
+                        return END_OF_STREAM;
+                    }
+                }
+                return plain[plainStart++] & 0xFF;
+            }
+
+            if (rawStart == rawEnd && !refillRaw()) {
+                return END_OF_STREAM;
+            }
+            return raw[rawStart++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (current && decryptor != null) {
+                try {
+                    return readPlain(b, off, len);
+                } catch (EOFException e) {
+                    return END_OF_STREAM;
+                }
+            }
+            return readRaw(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return current && decryptor != null ? plainEnd - plainStart : rawEnd - rawStart;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
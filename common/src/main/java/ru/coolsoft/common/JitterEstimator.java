@@ -0,0 +1,34 @@
+package ru.coolsoft.common;
+
+/**
+ * Estimates the inter-arrival jitter of media frames the way RFC 3550 does it:
+ * the clocks needn't be in sync as only the change of the transit time counts. Not thread safe
+ */
+public class JitterEstimator {
+    private boolean transitKnown;
+    private long lastTransit;
+    private double jitter;
+
+    /**
+     * @param transitMillis local arrival time of a frame less its sender's timestamp
+     */
+    public void onTransit(long transitMillis) {
+        if (transitKnown) {
+            jitter += (Math.abs(transitMillis - lastTransit) - jitter) / 16;
+        }
+        lastTransit = transitMillis;
+        transitKnown = true;
+    }
+
+    /**
+     * @return the mean jitter in milliseconds
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    public void reset() {
+        transitKnown = false;
+        jitter = 0;
+    }
+}
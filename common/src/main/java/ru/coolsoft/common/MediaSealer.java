@@ -0,0 +1,100 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Protocol.SEALED_HEADER_SIZE;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts media frames with a key shared by all the viewers, so that a frame is encrypted once
+ * and the same cipher text is sent to every client.
+ * Sealed frame layout: {@code nonce tag ciphertext}, where the nonce is a random session salt followed by
+ * a frame counter and the AES-GCM tag authenticates the frame, so that a tampered one fails to open
+ */
+public class MediaSealer {
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int KEY_SIZE = 16;
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    private static final int SALT_SIZE = 4;
+
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+    private final BufferPool pool;
+    /**
+     * Sealing side only, salted on the first frame
+     */
+    private byte[] nonce;
+    private long sequence;
+
+    public MediaSealer(byte[] mediaKey) throws GeneralSecurityException {
+        this(mediaKey, BufferPool.getInstance());
+    }
+
+    public MediaSealer(byte[] mediaKey, BufferPool bufferPool) throws GeneralSecurityException {
+        key = new SecretKeySpec(mediaKey, Constants.CIPHER_ALGORITHM);
+        cipher = Cipher.getInstance(TRANSFORMATION);
+        pool = bufferPool;
+    }
+
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * @return sealed copy of {@code frame} leased from the pool. The caller must release it once sent
+     */
+    public synchronized PooledBuffer seal(PooledBuffer frame) throws GeneralSecurityException {
+        if (nonce == null) {
+            nonce = new byte[NONCE_SIZE];
+            new SecureRandom().nextBytes(nonce);
+        }
+        ByteBuffer.wrap(nonce).putLong(SALT_SIZE, sequence++);
+
+        int len = frame.length();
+        //the cipher puts the tag after the cipher text, it is moved into the header
+        PooledBuffer sealed = pool.lease(SEALED_HEADER_SIZE + len + TAG_SIZE);
+        try {
+            byte[] array = sealed.array();
+            System.arraycopy(nonce, 0, array, 0, NONCE_SIZE);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce));
+            cipher.doFinal(frame.array(), frame.offset(), len, array, SEALED_HEADER_SIZE);
+            System.arraycopy(array, SEALED_HEADER_SIZE + len, array, NONCE_SIZE, TAG_SIZE);
+        } catch (GeneralSecurityException e) {
+            sealed.release();
+            throw e;
+        }
+        sealed.setLength(SEALED_HEADER_SIZE + len);
+        return sealed;
+    }
+
+    /**
+     * @return plain frame leased from the pool. The caller must release it once consumed
+     * @throws javax.crypto.AEADBadTagException if the frame was tampered with
+     */
+    public synchronized PooledBuffer open(PooledBuffer sealed) throws GeneralSecurityException {
+        if (sealed.length() < SEALED_HEADER_SIZE) {
+            throw new GeneralSecurityException("Sealed frame too short");
+        }
+
+        byte[] array = sealed.array();
+        int offset = sealed.offset();
+        PooledBuffer frame = pool.lease(sealed.length() - SEALED_HEADER_SIZE);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * Byte.SIZE, array, offset, NONCE_SIZE));
+            int produced = cipher.update(array, offset + SEALED_HEADER_SIZE, frame.length(), frame.array(), 0);
+            cipher.doFinal(array, offset + NONCE_SIZE, TAG_SIZE, frame.array(), produced);
+        } catch (GeneralSecurityException e) {
+            frame.release();
+            throw e;
+        }
+        return frame;
+    }
+}
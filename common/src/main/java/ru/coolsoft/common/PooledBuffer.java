@@ -0,0 +1,100 @@
+package ru.coolsoft.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A byte array leased from a {@link BufferPool}.
+ * The data starts at {@link #offset()}, normally 0 unless headroom is reserved for a header to be put in front of it.
+ * The buffer returns to its pool once every holder has called {@link #release()}
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final byte[] data;
+    private final AtomicInteger references = new AtomicInteger();
+    private int offset;
+    private int length;
+    /**
+     * Whether the frame header is stamped in the headroom, see {@link FrameEncoder#leaseMediaFrame}
+     */
+    private boolean stamped;
+
+    PooledBuffer(BufferPool owner, int capacity) {
+        pool = owner;
+        data = new byte[capacity];
+    }
+
+    PooledBuffer lease(int size) {
+        return lease(size, 0);
+    }
+
+    PooledBuffer lease(int size, int headroom) {
+        references.set(1);
+        offset = headroom;
+        length = size;
+        stamped = false;
+        return this;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * @return index of the first data byte in {@link #array()}
+     */
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void setLength(int len) {
+        if (len < 0 || offset + len > data.length) {
+            throw new IndexOutOfBoundsException("length " + len + " exceeds capacity " + (data.length - offset));
+        }
+        if (len != length) {
+            stamped = false;
+        }
+        length = len;
+    }
+
+    boolean isStamped() {
+        return stamped;
+    }
+
+    void setStamped() {
+        stamped = true;
+    }
+
+    /**
+     * @return a view of the valid data range. Must not be used after the buffer is released
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, offset, length);
+    }
+
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.decrementAndGet();
+            throw new IllegalStateException("buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            pool.recycle(this);
+        } else if (left < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("buffer released more times than leased");
+        }
+    }
+}
@@ -1,91 +1,87 @@
 package ru.coolsoft.common;
 
-import static ru.coolsoft.common.Constants.SIZEOF_INT;
-import static ru.coolsoft.common.Constants.UNUSED;
-import static ru.coolsoft.common.enums.StreamId.AUTHENTICATION;
-import static ru.coolsoft.common.enums.StreamId.MEDIA;
-
 import android.os.Handler;
 
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StreamCorruptedException;
-import java.nio.ByteBuffer;
 
 import ru.coolsoft.common.enums.StreamId;
 
 public class Protocol {
     public final static int END_OF_STREAM = -1; // by Streams contract
     public final static int MEDIA_BUFFER_SIZE = 65536;
+    /**
+     * Upper bound of a media access unit reassembled from {@link StreamId#MEDIA_FRAGMENT} frames
+     */
+    public final static int MAX_ACCESS_UNIT_SIZE = 2 * 1024 * 1024;
+    /**
+     * {@link StreamId#MEDIA_FRAGMENT} payload prefix: access unit length and fragment offset
+     */
+    public final static int FRAGMENT_HEADER_SIZE = 2 * Constants.SIZEOF_INT;
+    /**
+     * {@link StreamId#MEDIA_SEALED} payload prefix: the nonce and the tag of the shared media key cipher
+     */
+    public final static int SEALED_HEADER_SIZE = MediaSealer.NONCE_SIZE + MediaSealer.TAG_SIZE;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client accepting {@link RecordCipher} protected frames
+     */
+    public final static byte CAPS_RECORD_MODE = 0x01;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client which has verified the server's TLS certificate
+     * and accepts frames protected by TLS alone
+     */
+    public final static byte CAPS_TRANSPORT_SECURED = 0x02;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client requesting an {@link EncoderProfile}
+     * which follows the flags in the payload. Such a client gets {@link ru.coolsoft.common.enums.Command#PROFILE}
+     * ahead of every {@link ru.coolsoft.common.enums.Command#FORMAT}
+     */
+    public final static byte CAPS_ENCODER_PROFILE = 0x04;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client listing the {@link VideoCodecs} it can decode
+     * in a byte following the encoder profile if any. Such a client gets the chosen
+     * {@link ru.coolsoft.common.enums.VideoCodec} ID after the profile in {@link ru.coolsoft.common.enums.Command#PROFILE},
+     * the others get {@link ru.coolsoft.common.enums.VideoCodec#AVC}
+     */
+    public final static byte CAPS_VIDEO_CODECS = 0x08;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client taking
+     * {@link ru.coolsoft.common.enums.Command#MOTION} events: a byte, {@code 1} on the motion start and {@code 0} on its stop
+     */
+    public final static byte CAPS_MOTION_EVENTS = 0x10;
+    /**
+     * {@link ru.coolsoft.common.enums.Command#CAPS} flag of a client taking the shared media key in
+     * {@link ru.coolsoft.common.enums.Command#MEDIA_KEY} and {@link StreamId#MEDIA_SEALED} frames opened with it.
+     * The others get every frame ciphered for them alone
+     */
+    public final static byte CAPS_SHARED_MEDIA_KEY = 0x20;
 
+    /**
+     * @param outputStreamSupplier provides the stream to write a frame of the given stream ID to.
+     *                             Message payload ({@code obj}) is either a {@code byte[]} or a {@link PooledBuffer}.
+     *                             The latter is released once written
+     */
     public static Handler.Callback createSendRoutine(Supplier<OutputStream, StreamId> outputStreamSupplier) {
+        FrameEncoder encoder = new FrameEncoder();
         return msg -> {
+            StreamId streamId = StreamId.lookup(msg.arg1);
             try {
-                int dataLen;
-                if (msg.obj != null) {
-                    dataLen = ((byte[]) msg.obj).length;
-                } else {
-                    dataLen = 0;
-                }
-
-                StreamId streamId = StreamId.lookup(msg.arg1);
                 OutputStream out = outputStreamSupplier.get(streamId);
-                out.write(msg.arg1);
-                if (msg.arg2 != UNUSED) {
-                    out.write(msg.arg2);
-                }
-                if (streamId == AUTHENTICATION && dataLen == 0) {
-                    return true;
-                }
-
-                ByteBuffer buf = ByteBuffer.allocate(SIZEOF_INT);
-                buf.putInt(dataLen);
-                out.write(buf.array());
-                if (dataLen > 0) {
-                    out.write((byte[]) msg.obj);
-                }
-                if (streamId != MEDIA) {
-                    out.flush();
+                if (msg.obj instanceof PooledBuffer) {
+                    encoder.writeFrame(out, streamId, msg.arg2, (PooledBuffer) msg.obj);
+                } else {
+                    byte[] data = (byte[]) msg.obj;
+                    encoder.writeFrame(out, streamId, msg.arg2, data, data == null ? 0 : data.length);
                 }
                 return true;
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
+            } finally {
+                if (msg.obj instanceof PooledBuffer) {
+                    ((PooledBuffer) msg.obj).release();
+                }
             }
         };
     }
-
-    public static byte[] readData(InputStream in) throws StreamCorruptedException, EOFException {
-        byte[] lenBuffer = new byte[4];
-        readAllBytes(in, lenBuffer);
-        int len = ByteBuffer.wrap(lenBuffer).getInt();
-        if (len < 0 || len > MEDIA_BUFFER_SIZE) {
-            throw new StreamCorruptedException("Invalid data len");
-        }
-
-        byte[] data = new byte[len];
-        readAllBytes(in, data);
-        return data;
-    }
-
-    private static void readAllBytes(InputStream in, byte[] buffer) throws EOFException {
-        int remainder = buffer.length;
-        int acquired = 0;
-        do {
-            int read;
-            try {
-                read = in.read(buffer, acquired, remainder);
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-            if (read == END_OF_STREAM) {
-                throw new EOFException();
-            }
-            acquired += read;
-            remainder -= read;
-        } while (remainder > 0);
-    }
 }
@@ -0,0 +1,82 @@
+package ru.coolsoft.common;
+
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reception statistics a client sends with {@link ru.coolsoft.common.enums.Command#RECEIVER_REPORT}
+ * for the period since its previous report, see {@link ReceiverStats}
+ */
+public final class ReceiverReport {
+    /**
+     * Serialized form: period, bytes and frames received, jitter and queue depth
+     */
+    public static final int SIZE = 5 * SIZEOF_INT;
+
+    public final int periodMillis;
+    /**
+     * media bytes received over the period
+     */
+    public final int bytesReceived;
+    public final int framesReceived;
+    /**
+     * smoothed variation of the frame transit time, RFC 3550 style
+     */
+    public final int jitterMillis;
+    /**
+     * frames received but not yet taken by the decoder
+     */
+    public final int queueDepth;
+
+    public ReceiverReport(int periodMillis, int bytesReceived, int framesReceived, int jitterMillis, int queueDepth) {
+        this.periodMillis = periodMillis;
+        this.bytesReceived = bytesReceived;
+        this.framesReceived = framesReceived;
+        this.jitterMillis = jitterMillis;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @return bits per second received over the period
+     */
+    public long getReceivedBitrate() {
+        return periodMillis == 0 ? 0 : bytesReceived * 8L * 1000 / periodMillis;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the buffer holds less than {@link #SIZE} bytes or the values are out of range
+     */
+    public static ReceiverReport read(ByteBuffer buffer) {
+        ReceiverReport report;
+        try {
+            report = new ReceiverReport(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated receiver report", e);
+        }
+        if (report.periodMillis <= 0 || report.bytesReceived < 0 || report.framesReceived < 0
+                || report.jitterMillis < 0 || report.queueDepth < 0) {
+            throw new IllegalArgumentException("Invalid receiver report: " + report);
+        }
+        return report;
+    }
+
+    public ByteBuffer write(ByteBuffer buffer) {
+        return buffer.putInt(periodMillis)
+                .putInt(bytesReceived)
+                .putInt(framesReceived)
+                .putInt(jitterMillis)
+                .putInt(queueDepth);
+    }
+
+    public byte[] toByteArray() {
+        return write(ByteBuffer.allocate(SIZE)).array();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes, %d frames in %dms, jitter %dms, queued %d",
+                bytesReceived, framesReceived, periodMillis, jitterMillis, queueDepth);
+    }
+}
@@ -0,0 +1,41 @@
+package ru.coolsoft.common;
+
+/**
+ * Accumulates the reception of media frames into {@link ReceiverReport}s.
+ * The jitter is estimated from the sender's timestamps with a {@link JitterEstimator}
+ */
+public class ReceiverStats {
+    private long periodStart;
+    private int bytes;
+    private int frames;
+
+    private final JitterEstimator jitter = new JitterEstimator();
+
+    public ReceiverStats(long startMillis) {
+        periodStart = startMillis;
+    }
+
+    /**
+     * @param sentMillis   sender's wall-clock timestamp of the frame
+     * @param arrivalMillis local wall-clock time of arrival
+     */
+    public synchronized void onFrame(long sentMillis, long arrivalMillis, int size) {
+        bytes += size;
+        frames++;
+        jitter.onTransit(arrivalMillis - sentMillis);
+    }
+
+    /**
+     * Closes the current period. The jitter estimate carries over to the next one
+     *
+     * @param queueDepth frames awaiting the decoder
+     */
+    public synchronized ReceiverReport report(long nowMillis, int queueDepth) {
+        ReceiverReport report = new ReceiverReport((int) Math.max(1, nowMillis - periodStart),
+                bytes, frames, (int) Math.round(jitter.getJitter()), queueDepth);
+        periodStart = nowMillis;
+        bytes = 0;
+        frames = 0;
+        return report;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.coolsoft.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM record protection: every frame is sealed on its own with a counter nonce
+ * and the clear frame header as additional authenticated data.
+ * Records must be opened in the order they're sealed, as both sides count them to derive the nonce.
+ * The key is derived from the session secret and a random salt, so that nonces never repeat across sessions
+ */
+public class RecordCipher {
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int TAG_SIZE = 16;
+    public static final int SALT_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final byte[] KEY_LABEL = "p2p-record-v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final int opmode;
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] nonce = new byte[NONCE_SIZE];
+    private long sequence;
+
+    /**
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     */
+    public RecordCipher(int mode, byte[] secret, byte[] salt) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(KEY_LABEL);
+        digest.update(secret);
+        digest.update(salt);
+        byte[] derived = digest.digest();
+        key = new SecretKeySpec(derived, Constants.CIPHER_ALGORITHM);
+        Arrays.fill(derived, (byte) 0);
+
+        opmode = mode;
+        cipher = Cipher.getInstance(TRANSFORMATION);
+    }
+
+    public static byte[] generateSalt() {
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Encrypts {@code len} bytes of {@code src} into {@code dst} followed by the tag
+     *
+     * @param header clear record header to authenticate
+     * @return number of bytes written to {@code dst}
+     */
+    public int seal(byte[] header, int headerLen, byte[] src, int srcOff, int len, byte[] dst, int dstOff)
+            throws GeneralSecurityException {
+        init(header, headerLen);
+        return len == 0
+                ? cipher.doFinal(dst, dstOff)
+                : cipher.doFinal(src, srcOff, len, dst, dstOff);
+    }
+
+    /**
+     * Decrypts and verifies {@code len} bytes of cipher text and tag. Opening in place is allowed
+     *
+     * @return number of plain text bytes written to {@code dst}
+     * @throws javax.crypto.AEADBadTagException if the record or its header was tampered with
+     */
+    public int open(byte[] header, int headerLen, byte[] src, int srcOff, int len, byte[] dst, int dstOff)
+            throws GeneralSecurityException {
+        init(header, headerLen);
+        return cipher.doFinal(src, srcOff, len, dst, dstOff);
+    }
+
+    /**
+     * Decrypts and verifies {@code len} bytes of cipher text followed by the tag kept apart. Opening in place is allowed
+     *
+     * @return number of plain text bytes written to {@code dst}
+     * @throws javax.crypto.AEADBadTagException if the record or its header was tampered with
+     */
+    public int open(byte[] header, int headerLen, byte[] src, int srcOff, int len, byte[] tag, byte[] dst, int dstOff)
+            throws GeneralSecurityException {
+        init(header, headerLen);
+        int produced = cipher.update(src, srcOff, len, dst, dstOff);
+        return produced + cipher.doFinal(tag, 0, TAG_SIZE, dst, dstOff + produced);
+    }
+
+    private void init(byte[] header, int headerLen) throws GeneralSecurityException {
+        ByteBuffer.wrap(nonce).putLong(NONCE_SIZE - Constants.SIZEOF_LONG, sequence++);
+        cipher.init(opmode, key, new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce));
+        cipher.updateAAD(header, 0, headerLen);
+    }
+}
@@ -0,0 +1,27 @@
+package ru.coolsoft.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream carrying {@link RecordCipher} protected frames.
+ * {@link FrameEncoder} seals each frame into a single write, so the bytes are passed through as is
+ */
+public class RecordOutputStream extends FilterOutputStream {
+    private final RecordCipher cipher;
+
+    public RecordOutputStream(OutputStream os, RecordCipher recordCipher) {
+        super(os);
+        cipher = recordCipher;
+    }
+
+    public RecordCipher getCipher() {
+        return cipher;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.coolsoft.common;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+
+import ru.coolsoft.common.enums.VideoCodec;
+
+/**
+ * Sets of {@link VideoCodec}s as exchanged with {@link Protocol#CAPS_VIDEO_CODECS}: a bit per codec ID
+ */
+public class VideoCodecs {
+    /**
+     * Preferred first: HEVC takes about half the bitrate of AVC for the same picture quality
+     */
+    private static final VideoCodec[] PREFERENCE = {VideoCodec.HEVC, VideoCodec.AVC};
+    private static final int AVC_NAL_IDR = 5;
+    private static final int AVC_NAL_SPS = 7;
+    private static final int HEVC_NAL_IRAP_FIRST = 16;
+    private static final int HEVC_NAL_IRAP_LAST = 21;
+    private static final int HEVC_NAL_VPS = 32;
+    private static final int HEVC_NAL_PPS = 34;
+
+    /**
+     * @return the set of the codecs the device has an encoder or a decoder of
+     */
+    public static int getSupported(boolean encoder) {
+        int codecs = 0;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (info.isEncoder() != encoder) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                for (VideoCodec codec : PREFERENCE) {
+                    if (codec.mimeType.equalsIgnoreCase(type)) {
+                        codecs |= codec.id;
+                    }
+                }
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * @return the preferred codec of the set, {@link VideoCodec#AVC} as the one every peer supports
+     * if the set has none of the known ones
+     */
+    public static VideoCodec select(int codecs) {
+        for (VideoCodec codec : PREFERENCE) {
+            if (contains(codecs, codec)) {
+                return codec;
+            }
+        }
+        return VideoCodec.AVC;
+    }
+
+    public static boolean contains(int codecs, VideoCodec codec) {
+        return (codecs & codec.id) != 0;
+    }
+
+    /**
+     * Looks the Annex B access unit through up to its first picture slice
+     *
+     * @return whether the access unit can be decoded on its own: it starts a new coded video sequence
+     * or carries the parameter sets for one
+     */
+    public static boolean isKeyFrame(VideoCodec codec, byte[] data, int offset, int length) {
+        int end = offset + length;
+        int zeros = 0;
+        for (int i = offset; i < end - 1; i++) {
+            if (data[i] == 0) {
+                zeros++;
+                continue;
+            }
+            boolean startCode = data[i] == 1 && zeros >= 2;
+            zeros = 0;
+            if (!startCode) {
+                continue;
+            }
+
+            int header = data[++i] & 0xff;
+            if (codec == VideoCodec.HEVC) {
+                int type = (header >> 1) & 0x3f;
+                if (type >= HEVC_NAL_VPS && type <= HEVC_NAL_PPS) {
+                    return true;
+                }
+                if (type < HEVC_NAL_VPS) {
+                    return type >= HEVC_NAL_IRAP_FIRST && type <= HEVC_NAL_IRAP_LAST;
+                }
+            } else {
+                int type = header & 0x1f;
+                if (type == AVC_NAL_SPS || type == AVC_NAL_IDR) {
+                    return true;
+                }
+                if (type >= 1 && type < AVC_NAL_IDR) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -11,6 +11,13 @@ public enum Command {
     CAPS(1),
     AVAILABILITY(2),
     FORMAT(3),
+    MEDIA_KEY(4),
+    RECORD_MODE(5),
+    TRANSPORT_SECURED(6),
+    PROFILE(7),
+    RECEIVER_REPORT(8),
+    SYNC_FRAME(9),
+    MOTION(10),
     END_OF_STREAM(Protocol.END_OF_STREAM),
     UNDEFINED(-256);
 
@@ -11,6 +11,11 @@ public enum StreamId {
     CONTROL(1),
     MEDIA(2),
     PADDING(3),
+    MEDIA_FRAGMENT(4),
+    /**
+     * Media frame encrypted with the shared media key. Only the header is passed through the client's cipher
+     */
+    MEDIA_SEALED(5),
 
     END_OF_STREAM(Protocol.END_OF_STREAM),
 
@@ -0,0 +1,18 @@
+package ru.coolsoft.common.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Lookup;
+
+/**
+ * Video coding formats of the stream. The IDs are single bits for a set of them to fit a byte
+ */
+@AllArgsConstructor
+@Lookup(field = "id", defaultValue = "UNDEFINED")
+public enum VideoCodec {
+    AVC(0x01, "video/avc"),
+    HEVC(0x02, "video/hevc"),
+    UNDEFINED(0, null);
+
+    public final int id;
+    public final String mimeType;
+}
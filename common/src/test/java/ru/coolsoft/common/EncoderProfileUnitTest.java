@@ -0,0 +1,33 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class EncoderProfileUnitTest {
+    @Test
+    public void testRoundTripAfterCapsFlags() {
+        EncoderProfile profile = new EncoderProfile(1280, 720, 2000000, 30, 1);
+        ByteBuffer caps = profile.write(ByteBuffer.allocate(1 + EncoderProfile.SIZE).put(Protocol.CAPS_ENCODER_PROFILE));
+        assertFalse(caps.hasRemaining());
+
+        byte[] data = caps.array();
+        EncoderProfile read = EncoderProfile.read(ByteBuffer.wrap(data, 1, data.length - 1));
+        assertEquals(profile, read);
+        assertEquals(profile.hashCode(), read.hashCode());
+        assertEquals(profile, EncoderProfile.read(ByteBuffer.wrap(profile.toByteArray())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedProfile() {
+        EncoderProfile.read(ByteBuffer.wrap(EncoderProfile.DEFAULT.toByteArray(), 0, EncoderProfile.SIZE - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProfile() {
+        EncoderProfile.read(ByteBuffer.wrap(new EncoderProfile(0, 240, 500000, 20, 3).toByteArray()));
+    }
+}
@@ -0,0 +1,303 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static ru.coolsoft.common.Constants.CIPHER_ALGORITHM;
+import static ru.coolsoft.common.Constants.CIPHER_IV;
+import static ru.coolsoft.common.Constants.CIPHER_IV_CHARSET;
+import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+import static ru.coolsoft.common.enums.Command.FORMAT;
+import static ru.coolsoft.common.enums.Command.RECORD_MODE;
+import static ru.coolsoft.common.enums.StreamId.CONTROL;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_FRAGMENT;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_SEALED;
+import static ru.coolsoft.common.enums.StreamId.PADDING;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class FrameCodecUnitTest {
+    @Test
+    public void testPooledBufferReuse() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer first = pool.lease(1000);
+        assertEquals(1000, first.length());
+        assertEquals(1024, first.capacity());
+        first.retain();
+        first.release();
+        first.release();
+
+        PooledBuffer second = pool.lease(600);
+        assertSame(first, second);
+        assertEquals(600, second.length());
+        second.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDoubleRelease() {
+        PooledBuffer buffer = new BufferPool().lease(10);
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void testMediaFrameRoundTrip() throws IOException {
+        BufferPool pool = new BufferPool();
+        PooledBuffer payload = pool.lease(3000);
+        for (int i = 0; i < payload.length(); i++) {
+            payload.array()[i] = (byte) i;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder().writeFrame(out, MEDIA, UNUSED, payload);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(MEDIA.id, in.read());
+        PooledBuffer frame = new FrameDecoder(pool).readFrame(in);
+        assertEquals(payload.length(), frame.length());
+        assertArrayEquals(Arrays.copyOf(payload.array(), payload.length()),
+                Arrays.copyOf(frame.array(), frame.length()));
+        frame.release();
+        payload.release();
+    }
+
+    @Test
+    public void testFragmentedMediaRoundTrip() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] accessUnit = new byte[3 * MEDIA_BUFFER_SIZE + 100];
+        for (int i = 0; i < accessUnit.length; i++) {
+            accessUnit[i] = (byte) (i * 31);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder(pool).writeFrame(out, MEDIA, UNUSED, accessUnit, accessUnit.length);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        FrameDecoder decoder = new FrameDecoder(pool);
+        PooledBuffer frame;
+        int fragments = 0;
+        do {
+            assertEquals(MEDIA_FRAGMENT.id, in.read());
+            frame = decoder.readFragment(in);
+            fragments++;
+        } while (frame == null);
+
+        assertEquals(4, fragments);
+        assertEquals(-1, in.read());
+        assertArrayEquals(accessUnit, Arrays.copyOf(frame.array(), frame.length()));
+        frame.release();
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testFragmentOutOfSequence() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] accessUnit = new byte[2 * MEDIA_BUFFER_SIZE];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(pool);
+        encoder.writeFrame(out, MEDIA, UNUSED, accessUnit, accessUnit.length);
+        byte[] stream = out.toByteArray();
+
+        //drop the first fragment
+        InputStream in = new ByteArrayInputStream(stream, 1 + 4 + MEDIA_BUFFER_SIZE, stream.length);
+        assertEquals(MEDIA_FRAGMENT.id, in.read());
+        new FrameDecoder(pool).readFragment(in);
+    }
+
+    @Test
+    public void testSealedFrameBetweenCipheredFrames() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] key = new byte[32];
+        SecretKeySpec keySpec = new SecretKeySpec(key, CIPHER_ALGORITHM);
+        IvParameterSpec iv = new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET)));
+        Cipher encryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        encryptor.init(Cipher.ENCRYPT_MODE, keySpec, iv);
+        Cipher decryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        decryptor.init(Cipher.DECRYPT_MODE, keySpec, iv);
+
+        PooledBuffer media = pool.lease(5000);
+        for (int i = 0; i < media.length(); i++) {
+            media.array()[i] = (byte) (i * 7);
+        }
+        byte[] mediaKey = MediaSealer.generateKey();
+        PooledBuffer sealed = new MediaSealer(mediaKey, pool).seal(media);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CipherBlockSizeAwareOutputStream cout = new CipherBlockSizeAwareOutputStream(out, encryptor);
+        FrameEncoder encoder = new FrameEncoder(pool);
+        encoder.writeFrame(cout, MEDIA, UNUSED, new byte[]{1, 2, 3}, 3);
+        encoder.writeSealedFrame(out, cout, sealed);
+        encoder.writeFrame(cout, CONTROL, FORMAT.id, new byte[]{4, 5}, 2);
+        sealed.release();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setDecryptor(decryptor);
+        InputStream cin = reader.stream();
+        FrameDecoder decoder = new FrameDecoder(pool);
+        assertEquals(MEDIA.id, cin.read());
+        assertArrayEquals(new byte[]{1, 2, 3}, decoder.readData(cin));
+        assertEquals(MEDIA_SEALED.id, readSkippingPadding(cin));
+
+        PooledBuffer received = decoder.readSealedFrame(cin, reader.rawStream());
+        PooledBuffer opened = new MediaSealer(mediaKey, pool).open(received);
+        received.release();
+        assertArrayEquals(Arrays.copyOf(media.array(), media.length()), Arrays.copyOf(opened.array(), opened.length()));
+        opened.release();
+        media.release();
+
+        assertEquals(CONTROL.id, readSkippingPadding(cin));
+        assertEquals(FORMAT.id, cin.read());
+        assertArrayEquals(new byte[]{4, 5}, decoder.readData(cin));
+    }
+
+    @Test
+    public void testRecordsAfterCipheredSwitch() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] secret = new byte[32];
+        SecretKeySpec keySpec = new SecretKeySpec(secret, CIPHER_ALGORITHM);
+        IvParameterSpec iv = new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET)));
+        Cipher encryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        encryptor.init(Cipher.ENCRYPT_MODE, keySpec, iv);
+        Cipher decryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        decryptor.init(Cipher.DECRYPT_MODE, keySpec, iv);
+
+        int len = MEDIA_BUFFER_SIZE * 2 + 5;
+        byte[] media = new byte[len];
+        for (int i = 0; i < len; i++) {
+            media[i] = (byte) (i * 13);
+        }
+        PooledBuffer sealed = new MediaSealer(MediaSealer.generateKey(), pool).seal(pool.lease(100));
+        byte[] salt = RecordCipher.generateSalt();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(pool);
+        encoder.writeFrame(new CipherBlockSizeAwareOutputStream(out, encryptor), CONTROL, RECORD_MODE.id, salt, salt.length);
+        RecordOutputStream rout = new RecordOutputStream(out, new RecordCipher(Cipher.ENCRYPT_MODE, secret, salt));
+        encoder.writeFrame(rout, MEDIA, UNUSED, media, len);
+        encoder.writeSealedRecord(rout, sealed);
+        encoder.writeFrame(rout, CONTROL, FORMAT.id, new byte[]{4, 5}, 2);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setDecryptor(decryptor);
+        InputStream cin = reader.stream();
+        FrameDecoder decoder = new FrameDecoder(pool);
+        assertEquals(CONTROL.id, cin.read());
+        assertEquals(RECORD_MODE.id, cin.read());
+        RecordCipher records = new RecordCipher(Cipher.DECRYPT_MODE, secret, decoder.readData(cin));
+
+        //the records follow in clear
+        InputStream in = reader.rawStream();
+
+        assertEquals(MEDIA.id, in.read());
+        PooledBuffer received = decoder.readRecord(in, records, MEDIA, UNUSED);
+        assertArrayEquals(media, Arrays.copyOf(received.array(), received.length()));
+        received.release();
+
+        assertEquals(MEDIA_SEALED.id, in.read());
+        received = decoder.readSealedRecord(in, records);
+        assertArrayEquals(Arrays.copyOf(sealed.array(), sealed.length()), Arrays.copyOf(received.array(), received.length()));
+        received.release();
+        sealed.release();
+
+        assertEquals(CONTROL.id, in.read());
+        assertEquals(FORMAT.id, in.read());
+        assertArrayEquals(new byte[]{4, 5}, decoder.readRecordData(in, records, CONTROL, FORMAT.id));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testTamperedRecord() throws Exception {
+        byte[] secret = new byte[32];
+        byte[] salt = RecordCipher.generateSalt();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameEncoder().writeFrame(new RecordOutputStream(out, new RecordCipher(Cipher.ENCRYPT_MODE, secret, salt)),
+                CONTROL, FORMAT.id, new byte[]{4, 5}, 2);
+        byte[] record = out.toByteArray();
+        record[record.length - 1] ^= 1;
+
+        InputStream in = new ByteArrayInputStream(record, 2, record.length - 2);
+        new FrameDecoder().readRecord(in, new RecordCipher(Cipher.DECRYPT_MODE, secret, salt), CONTROL, FORMAT.id);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testTamperedSealedFrame() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] mediaKey = MediaSealer.generateKey();
+        PooledBuffer media = pool.lease(100);
+        PooledBuffer sealed = new MediaSealer(mediaKey, pool).seal(media);
+        media.release();
+        sealed.array()[sealed.offset() + sealed.length() - 1] ^= 1;
+
+        new MediaSealer(mediaKey, pool).open(sealed);
+    }
+
+    @Test
+    public void testStampedMediaFrameWrittenInPlace() throws IOException {
+        BufferPool pool = new BufferPool();
+        PooledBuffer frame = FrameEncoder.leaseMediaFrame(pool, 3000);
+        for (int i = 0; i < frame.length(); i++) {
+            frame.array()[frame.offset() + i] = (byte) (i * 5);
+        }
+
+        byte[][] written = new byte[1][];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                written[0] = b;
+                super.write(b, off, len);
+            }
+        };
+        new FrameEncoder(pool).writeFrame(out, MEDIA, UNUSED, frame);
+        assertSame(frame.array(), written[0]);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(MEDIA.id, in.read());
+        PooledBuffer received = new FrameDecoder(pool).readFrame(in);
+        assertArrayEquals(Arrays.copyOfRange(frame.array(), frame.offset(), frame.offset() + frame.length()),
+                Arrays.copyOf(received.array(), received.length()));
+        received.release();
+        frame.release();
+    }
+
+    @Test
+    public void testReusedMediaBufferNotTakenAsStamped() throws IOException {
+        BufferPool pool = new BufferPool();
+        FrameEncoder.leaseMediaFrame(pool, 3000).release();
+        PooledBuffer payload = pool.lease(3000, FrameEncoder.MEDIA_HEADER_SIZE);
+
+        byte[][] written = new byte[1][];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                written[0] = b;
+                super.write(b, off, len);
+            }
+        };
+        new FrameEncoder(pool).writeFrame(out, MEDIA, UNUSED, payload);
+        assertNotSame(payload.array(), written[0]);
+        payload.release();
+    }
+
+    private static int readSkippingPadding(InputStream in) throws IOException {
+        int id;
+        do {
+            id = in.read();
+        } while (id == PADDING.id);
+        return id;
+    }
+}
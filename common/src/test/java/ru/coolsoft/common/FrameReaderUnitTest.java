@@ -0,0 +1,148 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.coolsoft.common.Constants.CIPHER_ALGORITHM;
+import static ru.coolsoft.common.Constants.CIPHER_IV;
+import static ru.coolsoft.common.Constants.CIPHER_IV_CHARSET;
+import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.Protocol.END_OF_STREAM;
+import static ru.coolsoft.common.enums.Command.FLASHLIGHT;
+import static ru.coolsoft.common.enums.Command.FORMAT;
+import static ru.coolsoft.common.enums.StreamId.AUTHENTICATION;
+import static ru.coolsoft.common.enums.StreamId.CONTROL;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+import static ru.coolsoft.common.enums.StreamId.MEDIA_SEALED;
+import static ru.coolsoft.common.enums.StreamId.PADDING;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class FrameReaderUnitTest {
+    /**
+     * Hands the data out in chunks of the given size at most, the way a socket does
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+        int reads;
+
+        ChunkedInputStream(byte[] buf, int maxChunk) {
+            super(buf);
+            chunk = maxChunk;
+        }
+
+        @Override
+        public synchronized int read() {
+            reads++;
+            return super.read();
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            reads++;
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private static Cipher createCipher(int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(mode, new SecretKeySpec(new byte[32], CIPHER_ALGORITHM),
+                new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET))));
+        return cipher;
+    }
+
+    private static int readSkippingPadding(FrameReader reader) throws IOException {
+        int id;
+        do {
+            id = reader.readByte();
+        } while (id == PADDING.id);
+        return id;
+    }
+
+    @Test
+    public void testClearAndCipheredFrames() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] media = new byte[3000];
+        for (int i = 0; i < media.length; i++) {
+            media[i] = (byte) (i * 11);
+        }
+        PooledBuffer sealed = pool.lease(700);
+        Arrays.fill(sealed.array(), 0, sealed.length(), (byte) 0x5A);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(pool);
+        encoder.writeFrame(out, AUTHENTICATION, UNUSED, new byte[]{9, 8}, 2);
+        CipherBlockSizeAwareOutputStream cout = new CipherBlockSizeAwareOutputStream(out, createCipher(Cipher.ENCRYPT_MODE));
+        for (int i = 0; i < 20; i++) {
+            encoder.writeFrame(cout, MEDIA, UNUSED, media, media.length);
+            encoder.writeFrame(cout, CONTROL, FLASHLIGHT.id, new byte[]{(byte) i}, 1);
+        }
+        encoder.writeSealedFrame(out, cout, sealed);
+        encoder.writeFrame(cout, CONTROL, FORMAT.id, new byte[]{4, 5}, 2);
+
+        ChunkedInputStream source = new ChunkedInputStream(out.toByteArray(), 1500);
+        FrameReader reader = new FrameReader(source, 4096);
+        FrameDecoder decoder = new FrameDecoder(pool);
+
+        assertEquals(AUTHENTICATION.id, reader.readByte());
+        assertArrayEquals(new byte[]{9, 8}, decoder.readData(reader.stream()));
+
+        reader.setDecryptor(createCipher(Cipher.DECRYPT_MODE));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(MEDIA.id, readSkippingPadding(reader));
+            PooledBuffer frame = decoder.readFrame(reader.stream());
+            assertArrayEquals(media, Arrays.copyOf(frame.array(), frame.length()));
+            frame.release();
+
+            assertEquals(CONTROL.id, readSkippingPadding(reader));
+            assertEquals(FLASHLIGHT.id, reader.readByte());
+            assertArrayEquals(new byte[]{(byte) i}, decoder.readData(reader.stream()));
+        }
+
+        assertEquals(MEDIA_SEALED.id, readSkippingPadding(reader));
+        PooledBuffer received = decoder.readSealedFrame(reader.stream(), reader.rawStream());
+        assertArrayEquals(Arrays.copyOf(sealed.array(), sealed.length()), Arrays.copyOf(received.array(), received.length()));
+        received.release();
+        sealed.release();
+
+        assertEquals(CONTROL.id, readSkippingPadding(reader));
+        assertEquals(FORMAT.id, reader.readByte());
+        assertArrayEquals(new byte[]{4, 5}, decoder.readData(reader.stream()));
+        assertEquals(END_OF_STREAM, readSkippingPadding(reader));
+
+        //socket reads are bound by frames rather than bytes
+        assertTrue("reads: " + source.reads, source.reads < 100);
+    }
+
+    @Test
+    public void testClearDataAfterCipheredSwitch() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.writeFrame(new CipherBlockSizeAwareOutputStream(out, createCipher(Cipher.ENCRYPT_MODE)),
+                CONTROL, FORMAT.id, new byte[]{1, 2, 3}, 3);
+        encoder.writeFrame(out, MEDIA, UNUSED, new byte[]{7, 7}, 2);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.setDecryptor(createCipher(Cipher.DECRYPT_MODE));
+        assertEquals(CONTROL.id, reader.readByte());
+        assertEquals(FORMAT.id, reader.readByte());
+        assertArrayEquals(new byte[]{1, 2, 3}, new FrameDecoder().readData(reader.stream()));
+
+        //the padding left decrypted is dropped
+        reader.setDecryptor(null);
+        assertEquals(MEDIA.id, reader.readByte());
+        assertArrayEquals(new byte[]{7, 7}, new FrameDecoder().readData(reader.stream()));
+        assertEquals(END_OF_STREAM, reader.readByte());
+    }
+}
@@ -0,0 +1,133 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.coolsoft.common.Constants.CIPHER_ALGORITHM;
+import static ru.coolsoft.common.Constants.CIPHER_IV;
+import static ru.coolsoft.common.Constants.CIPHER_IV_CHARSET;
+import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
+import static ru.coolsoft.common.Constants.SIZEOF_INT;
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.enums.StreamId.CONTROL;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import ru.coolsoft.common.enums.Command;
+import ru.coolsoft.common.enums.StreamId;
+
+/**
+ * Counts cipher passes and writes reaching the "socket" per frame:
+ * the legacy field-by-field routine vs {@link FrameEncoder}
+ */
+public class FramedWriteBenchmarkUnitTest {
+    private static final int FRAMES = 2000;
+    private static final int FRAME_SIZE = 8 * 1024;
+
+    private static class CountingOutputStream extends OutputStream {
+        long writes;
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            writes++;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+            bytes += len;
+        }
+    }
+
+    private static class CountingCipherOutputStream extends CipherBlockSizeAwareOutputStream {
+        long passes;
+
+        CountingCipherOutputStream(OutputStream os, Cipher c) {
+            super(os, c);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            passes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private interface FrameWriter {
+        void write(OutputStream out, StreamId streamId, int commandId, byte[] data) throws IOException;
+    }
+
+    private static final FrameWriter legacyWriter = (out, streamId, commandId, data) -> {
+        out.write(streamId.id);
+        if (commandId != UNUSED) {
+            out.write(commandId);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(SIZEOF_INT);
+        buf.putInt(data.length);
+        out.write(buf.array());
+        out.write(data);
+        if (streamId != MEDIA) {
+            out.flush();
+        }
+    };
+
+    private static CountingCipherOutputStream createCipherStream(OutputStream out) throws GeneralSecurityException {
+        byte[] sha = "0123456789ABCDEFghijklmnopqrstuv".getBytes(StandardCharsets.US_ASCII);
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(sha, CIPHER_ALGORITHM),
+                new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET))));
+        return new CountingCipherOutputStream(out, cipher);
+    }
+
+    private static double[] run(String name, FrameWriter writer, boolean ciphered) throws Exception {
+        CountingOutputStream socket = new CountingOutputStream();
+        CountingCipherOutputStream cout = ciphered ? createCipherStream(socket) : null;
+        OutputStream out = ciphered ? cout : socket;
+        byte[] media = new byte[FRAME_SIZE];
+        byte[] control = new byte[]{1};
+
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            writer.write(out, MEDIA, UNUSED, media);
+            writer.write(out, CONTROL, Command.FLASHLIGHT.id, control);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double writesPerFrame = (double) socket.writes / (2 * FRAMES);
+        double passesPerFrame = ciphered ? (double) cout.passes / (2 * FRAMES) : 0;
+        System.out.printf("%-18s %5.2f writes/frame, %5.2f cipher passes/frame, %6.2f us/frame, %d bytes%n",
+                name, writesPerFrame, passesPerFrame, elapsed / 1000.0 / (2 * FRAMES), socket.bytes);
+        return new double[]{writesPerFrame, passesPerFrame};
+    }
+
+    @Test
+    public void benchmarkWritesPerFrame() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        FrameWriter framedWriter = (out, streamId, commandId, data) ->
+                encoder.writeFrame(out, streamId, commandId, data, data.length);
+
+        double[] legacyPlain = run("legacy, plain", legacyWriter, false);
+        double[] framedPlain = run("framed, plain", framedWriter, false);
+        double[] legacyCiphered = run("legacy, ciphered", legacyWriter, true);
+        double[] framedCiphered = run("framed, ciphered", framedWriter, true);
+
+        assertEquals(1.0, framedPlain[0], 0);
+        assertEquals(1.0, framedCiphered[0], 0);
+        assertEquals(1.0, framedCiphered[1], 0);
+        assertTrue(legacyPlain[0] > framedPlain[0]);
+        assertTrue(legacyCiphered[1] > framedCiphered[1]);
+    }
+}
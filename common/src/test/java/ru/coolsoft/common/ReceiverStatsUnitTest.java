@@ -0,0 +1,45 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ReceiverStatsUnitTest {
+    @Test
+    public void testSteadyTransitHasNoJitter() {
+        ReceiverStats stats = new ReceiverStats(0);
+        //the sender's clock is an hour off: only the change of the transit time counts
+        long offset = 3600000;
+        for (int i = 0; i < 20; i++) {
+            stats.onFrame(offset + i * 50, i * 50 + 30, 1000);
+        }
+
+        ReceiverReport report = stats.report(1000, 2);
+        assertEquals(1000, report.periodMillis);
+        assertEquals(20000, report.bytesReceived);
+        assertEquals(20, report.framesReceived);
+        assertEquals(0, report.jitterMillis);
+        assertEquals(2, report.queueDepth);
+        assertEquals(160000, report.getReceivedBitrate());
+
+        ReceiverReport next = stats.report(1500, 0);
+        assertEquals(500, next.periodMillis);
+        assertEquals(0, next.bytesReceived);
+    }
+
+    @Test
+    public void testVaryingTransitRaisesJitter() {
+        ReceiverStats stats = new ReceiverStats(0);
+        for (int i = 0; i < 200; i++) {
+            //transit alternates between 20 and 120 ms
+            stats.onFrame(i * 50, i * 50 + (i % 2 == 0 ? 20 : 120), 1000);
+        }
+        ReceiverReport report = stats.report(10000, 0);
+        assertEquals(100, report.jitterMillis, 2);
+
+        ReceiverReport read = ReceiverReport.read(ByteBuffer.wrap(report.toByteArray()));
+        assertEquals(report.toString(), read.toString());
+    }
+}
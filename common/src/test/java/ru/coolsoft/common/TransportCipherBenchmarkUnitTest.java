@@ -0,0 +1,139 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static ru.coolsoft.common.Constants.CIPHER_ALGORITHM;
+import static ru.coolsoft.common.Constants.CIPHER_IV;
+import static ru.coolsoft.common.Constants.CIPHER_IV_CHARSET;
+import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
+import static ru.coolsoft.common.Constants.UNUSED;
+import static ru.coolsoft.common.enums.StreamId.MEDIA;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares CPU time and cipher passes per media frame for the ways a frame gets protected:
+ * the application stream cipher over plain TCP, the same over TLS and TLS alone
+ * once {@link ru.coolsoft.common.enums.Command#TRANSPORT_SECURED} is negotiated.
+ * The TLS record layer is modeled by AES-GCM records of up to 16 KB
+ */
+public class TransportCipherBenchmarkUnitTest {
+    private static final int FRAMES = 2000;
+    private static final int FRAME_SIZE = 12 * 1024;
+    private static final int TLS_RECORD_SIZE = 16 * 1024;
+    private static final byte[] SECRET = "0123456789ABCDEFghijklmnopqrstuv".getBytes(StandardCharsets.US_ASCII);
+
+    private static class SinkOutputStream extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private static class CountingCipherOutputStream extends CipherBlockSizeAwareOutputStream {
+        long passes;
+
+        CountingCipherOutputStream(OutputStream os, Cipher c) {
+            super(os, c);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            passes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static class TlsModelOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final RecordCipher cipher;
+        private final byte[] header = new byte[5];
+        private final byte[] record = new byte[TLS_RECORD_SIZE + RecordCipher.TAG_SIZE];
+        long passes;
+
+        TlsModelOutputStream(OutputStream os) throws GeneralSecurityException {
+            out = os;
+            cipher = new RecordCipher(Cipher.ENCRYPT_MODE, SECRET, new byte[RecordCipher.SALT_SIZE]);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int chunk; len > 0; off += chunk, len -= chunk) {
+                chunk = Math.min(len, TLS_RECORD_SIZE);
+                try {
+                    out.write(record, 0, cipher.seal(header, header.length, b, off, chunk, record, 0));
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                passes++;
+            }
+        }
+    }
+
+    private static CountingCipherOutputStream createCipherStream(OutputStream out) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET, CIPHER_ALGORITHM),
+                new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET))));
+        return new CountingCipherOutputStream(out, cipher);
+    }
+
+    private static double run(String name, boolean appCipher, boolean tls) throws Exception {
+        SinkOutputStream socket = new SinkOutputStream();
+        TlsModelOutputStream tout = tls ? new TlsModelOutputStream(socket) : null;
+        OutputStream transport = tls ? tout : socket;
+        CountingCipherOutputStream cout = appCipher ? createCipherStream(transport) : null;
+        OutputStream out = appCipher ? cout : transport;
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] media = new byte[FRAME_SIZE];
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.writeFrame(out, MEDIA, UNUSED, media, media.length);
+        }
+        long elapsed = threads.getCurrentThreadCpuTime() - start;
+
+        double passesPerFrame = (double) ((cout == null ? 0 : cout.passes) + (tout == null ? 0 : tout.passes)) / FRAMES;
+        System.out.printf("%-20s %5.2f cipher passes/frame, %7.2f us CPU/frame, %d bytes%n",
+                name, passesPerFrame, elapsed / 1000.0 / FRAMES, socket.bytes);
+        return passesPerFrame;
+    }
+
+    @Test
+    public void benchmarkCipherPassesPerFrame() throws Exception {
+        //warm up the cipher implementations not to bill the first run for it
+        run("warm-up", true, true);
+
+        double appCipher = run("app cipher, TCP", true, false);
+        double both = run("app cipher, TLS", true, true);
+        double tlsOnly = run("transport secured", false, true);
+
+        assertEquals(1.0, appCipher, 0);
+        assertEquals(1.0, tlsOnly, 0);
+        assertTrue(both > tlsOnly);
+    }
+}
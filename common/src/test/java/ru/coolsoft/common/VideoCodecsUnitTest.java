@@ -0,0 +1,51 @@
+package ru.coolsoft.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ru.coolsoft.common.enums.VideoCodec;
+
+public class VideoCodecsUnitTest {
+    @Test
+    public void testHevcPreferred() {
+        assertEquals(VideoCodec.HEVC, VideoCodecs.select(VideoCodec.AVC.id | VideoCodec.HEVC.id));
+        assertEquals(VideoCodec.AVC, VideoCodecs.select(VideoCodec.AVC.id));
+    }
+
+    @Test
+    public void testCommonCodecOfPeers() {
+        int both = VideoCodec.AVC.id | VideoCodec.HEVC.id;
+        assertEquals(VideoCodec.AVC, VideoCodecs.select(both & VideoCodec.AVC.id));
+    }
+
+    @Test
+    public void testAvcFallback() {
+        assertEquals(VideoCodec.AVC, VideoCodecs.select(0));
+        assertEquals(VideoCodec.AVC, VideoCodecs.select(0x80));
+    }
+
+    @Test
+    public void testLookup() {
+        assertEquals(VideoCodec.HEVC, VideoCodec.lookup(VideoCodec.HEVC.id));
+        assertEquals(VideoCodec.UNDEFINED, VideoCodec.lookup(0x40));
+    }
+
+    @Test
+    public void testKeyFrameDetection() {
+        //SEI ahead of an IDR slice, 4 and 3 byte start codes
+        byte[] avcIdr = {0, 0, 0, 1, 0x06, 0x05, 0x01, 0, 0, 1, 0x65, (byte) 0x88};
+        byte[] avcDelta = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0, 0, 1, 0x65};
+        assertTrue(VideoCodecs.isKeyFrame(VideoCodec.AVC, avcIdr, 0, avcIdr.length));
+        assertFalse(VideoCodecs.isKeyFrame(VideoCodec.AVC, avcDelta, 0, avcDelta.length));
+        assertFalse(VideoCodecs.isKeyFrame(VideoCodec.AVC, avcIdr, 0, 4));
+
+        //VPS, IDR_W_RADL and TRAIL_R
+        byte[] hevc = {0, 0, 0, 1, 0x40, 0x01, 0, 0, 0, 1, 0x26, 0x01, 0, 0, 1, 0x02, 0x01};
+        assertTrue(VideoCodecs.isKeyFrame(VideoCodec.HEVC, hevc, 0, hevc.length));
+        assertTrue(VideoCodecs.isKeyFrame(VideoCodec.HEVC, hevc, 6, hevc.length - 6));
+        assertFalse(VideoCodecs.isKeyFrame(VideoCodec.HEVC, hevc, 12, hevc.length - 12));
+    }
+}
@@ -0,0 +1,60 @@
+package ru.coolsoft.p2pmonitor;
+
+import static ru.coolsoft.common.Constants.SIZEOF_LONG;
+
+import java.nio.ByteBuffer;
+
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.VideoCodecs;
+import ru.coolsoft.common.enums.VideoCodec;
+
+/**
+ * A whole encoded frame as the decoder takes it in one input buffer, along with its presentation time.
+ * The media frame is retained rather than copied, {@link #release} it once queued to the decoder or dropped
+ */
+class AccessUnit {
+    private final PooledBuffer data;
+    /**
+     * The sender's capture timestamp, the encoder spacing of the frames is kept in it
+     */
+    final long timestampMillis;
+    final long arrivalMillis;
+    final boolean keyFrame;
+    /**
+     * Parameter sets the key frame carries in-band ahead of its data
+     */
+    private final byte[] prefix;
+
+    /**
+     * @param media sender's timestamp followed by the encoded data, retained till {@link #release}
+     * @param codec         the codec of the stream, to tell the key frames by
+     * @param parameterSets Annex B parameter sets of the stream for a key frame to carry, {@code null} for none
+     */
+    AccessUnit(PooledBuffer media, VideoCodec codec, long arrivalMillis, byte[] parameterSets) {
+        data = media.retain();
+        timestampMillis = media.asByteBuffer().getLong();
+        this.arrivalMillis = arrivalMillis;
+        keyFrame = VideoCodecs.isKeyFrame(codec, data.array(), data.offset() + SIZEOF_LONG, data.length() - SIZEOF_LONG);
+        prefix = keyFrame && parameterSets != null ? parameterSets : new byte[0];
+    }
+
+    long getPresentationTimeUs() {
+        return timestampMillis * 1000;
+    }
+
+    int size() {
+        return prefix.length + data.length() - SIZEOF_LONG;
+    }
+
+    /**
+     * Copies the encoded data into the decoder's input buffer
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.put(prefix);
+        buffer.put(data.array(), data.offset() + SIZEOF_LONG, data.length() - SIZEOF_LONG);
+    }
+
+    void release() {
+        data.release();
+    }
+}
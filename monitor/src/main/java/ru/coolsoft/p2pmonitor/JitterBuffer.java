@@ -0,0 +1,168 @@
+package ru.coolsoft.p2pmonitor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import ru.coolsoft.common.JitterEstimator;
+
+/**
+ * Holds the received frames back for the playout delay, so that the network jitter doesn't reach the decoder.
+ * A frame is due at its sender's timestamp plus the least transit time seen plus the delay, which follows
+ * the inter-arrival jitter estimated by a {@link JitterEstimator}.
+ * In the live mode the playback never falls behind by more than {@link #LIVE_MAX_LATENESS_MILLIS}:
+ * the frames up to the latest buffered key frame are dropped, or all of them with the following delta frames
+ * till the next key frame comes. Not thread safe
+ */
+class JitterBuffer {
+    static final long MIN_DELAY_MILLIS = 10;
+    static final long MAX_DELAY_MILLIS = 500;
+    /**
+     * Multiple of the mean jitter to delay the playout by, covering most of the late frames
+     */
+    static final int JITTER_MULTIPLIER = 3;
+    /**
+     * How late the head frame may get in the live mode before the buffer skips to a key frame
+     */
+    static final long LIVE_MAX_LATENESS_MILLIS = 500;
+
+    private final ArrayDeque<AccessUnit> frames = new ArrayDeque<>();
+    private final Runnable keyFrameRequest;
+    private boolean live;
+
+    private long baseTransit = Long.MAX_VALUE;
+    private final JitterEstimator jitter = new JitterEstimator();
+    /**
+     * Set in the live mode once the buffer has been dropped with no key frame to restart from
+     */
+    private boolean awaitingKeyFrame;
+    private long droppedFrames;
+
+    /**
+     * @param keyFrameRequest asks the sender for a key frame when the live mode has dropped
+     *                        every frame the decoder could go on with
+     */
+    JitterBuffer(Runnable keyFrameRequest) {
+        this.keyFrameRequest = keyFrameRequest;
+    }
+
+    void setLive(boolean enabled) {
+        live = enabled;
+        if (!live) {
+            awaitingKeyFrame = false;
+        }
+    }
+
+    void add(AccessUnit unit) {
+        long transit = unit.arrivalMillis - unit.timestampMillis;
+        jitter.onTransit(transit);
+
+        if (awaitingKeyFrame) {
+            if (!unit.keyFrame) {
+                drop(unit);
+                return;
+            }
+            //the catch-up accepts the current transit, a link staying slow mustn't keep skipping
+            awaitingKeyFrame = false;
+            baseTransit = transit;
+        }
+        baseTransit = Math.min(baseTransit, transit);
+        frames.add(unit);
+    }
+
+    /**
+     * @return the next frame if it is due, {@code null} if there is none yet
+     */
+    AccessUnit poll(long nowMillis) {
+        AccessUnit head = frames.peek();
+        if (head == null) {
+            return null;
+        }
+        if (live && nowMillis - getDueTime(head) > LIVE_MAX_LATENESS_MILLIS) {
+            catchUp(nowMillis);
+            head = frames.peek();
+            if (head == null) {
+                return null;
+            }
+        }
+        return getDueTime(head) <= nowMillis ? frames.poll() : null;
+    }
+
+    /**
+     * @return milliseconds till the next frame is due, {@code 0} if it is due already and {@code -1} if there is none
+     */
+    long getWaitMillis(long nowMillis) {
+        AccessUnit head = frames.peek();
+        return head == null ? -1 : Math.max(0, getDueTime(head) - nowMillis);
+    }
+
+    /**
+     * @return the frames due already, those the decoder is behind with
+     */
+    int getDueCount(long nowMillis) {
+        int count = 0;
+        for (AccessUnit unit : frames) {
+            if (getDueTime(unit) > nowMillis) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    long getPlayoutDelay() {
+        return Math.max(MIN_DELAY_MILLIS, Math.min(MAX_DELAY_MILLIS, Math.round(jitter.getJitter() * JITTER_MULTIPLIER)));
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    int size() {
+        return frames.size();
+    }
+
+    /**
+     * Drops the frames and starts the estimates over, for a new connection
+     */
+    void clear() {
+        AccessUnit unit;
+        while ((unit = frames.poll()) != null) {
+            unit.release();
+        }
+        baseTransit = Long.MAX_VALUE;
+        jitter.reset();
+        awaitingKeyFrame = false;
+    }
+
+    private long getDueTime(AccessUnit unit) {
+        return unit.timestampMillis + baseTransit + getPlayoutDelay();
+    }
+
+    private void catchUp(long nowMillis) {
+        AccessUnit keyFrame = null;
+        Iterator<AccessUnit> it = frames.descendingIterator();
+        while (it.hasNext()) {
+            AccessUnit unit = it.next();
+            if (unit.keyFrame && unit != frames.peek()) {
+                keyFrame = unit;
+                break;
+            }
+        }
+
+        while (frames.peek() != keyFrame) {
+            drop(frames.poll());
+        }
+        if (keyFrame == null) {
+            awaitingKeyFrame = true;
+            keyFrameRequest.run();
+        } else {
+            //the skipped-to frame plays right away and the ones after it at their pace
+            baseTransit = nowMillis - keyFrame.timestampMillis - getPlayoutDelay();
+        }
+    }
+
+    private void drop(AccessUnit unit) {
+        droppedFrames++;
+        unit.release();
+    }
+}
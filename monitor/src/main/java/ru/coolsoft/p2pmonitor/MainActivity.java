@@ -1,27 +1,29 @@
 package ru.coolsoft.p2pmonitor;
 
-import static android.media.MediaFormat.KEY_HEIGHT;
-import static android.media.MediaFormat.KEY_WIDTH;
-import static android.media.MediaFormat.MIMETYPE_VIDEO_AVC;
 import static android.view.KeyEvent.KEYCODE_ENTER;
 import static ru.coolsoft.common.Constants.AUTH_DENIED_NOT_ALLOWED;
 import static ru.coolsoft.common.Constants.AUTH_DENIED_SECURITY_ERROR;
 import static ru.coolsoft.common.Constants.AUTH_DENIED_SERVER_ERROR;
 import static ru.coolsoft.common.Constants.AUTH_DENIED_WRONG_CREDENTIALS;
 import static ru.coolsoft.common.Constants.CAMERA_AVAILABLE;
-import static ru.coolsoft.common.Protocol.MEDIA_BUFFER_SIZE;
+import static ru.coolsoft.common.Protocol.MAX_ACCESS_UNIT_SIZE;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
@@ -36,20 +38,29 @@ import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.PreferenceManager;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.VideoCodecs;
 import ru.coolsoft.common.enums.Command;
 import ru.coolsoft.common.enums.Flashlight;
+import ru.coolsoft.common.enums.VideoCodec;
 import ru.coolsoft.common.ui.ConfirmationDialogFragment;
 import ru.coolsoft.p2pmonitor.databinding.ActivityMainBinding;
 
@@ -68,6 +79,12 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String DIALOG_KEY_UNTRUSTED = "untrusted";
     private static final String DIALOG_KEY_INSECURE = "insecure";
+    private static final long PACING_STATS_INTERVAL_NS = 10000000000L;
+    /**
+     * The largest stream size the settings offer, for an adaptive decoder to take without a restart
+     */
+    private static final int MAX_ADAPTIVE_WIDTH = 1920;
+    private static final int MAX_ADAPTIVE_HEIGHT = 1080;
 
     {
         DateFormat format = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG);
@@ -84,7 +101,79 @@ public class MainActivity extends AppCompatActivity {
     private float textureRotation = 0;
 
     private volatile MediaCodec mCodec = null;
-    private final ByteArrayOutputStream mediaStream = new ByteArrayOutputStream(MEDIA_BUFFER_SIZE);
+    /**
+     * Stream size reported with {@link Command#PROFILE}. Servers unaware of profiles don't report it
+     */
+    private int mVideoWidth = 640;
+    private int mVideoHeight = 480;
+    /**
+     * The codec of the stream, servers unaware of the others stream AVC
+     */
+    private volatile VideoCodec mVideoCodec = VideoCodec.AVC;
+    /**
+     * {@link VideoCodecs} the device decodes, looked up on the first connection
+     */
+    private int mDecoders = -1;
+    /**
+     * Parameter sets of the stream in Annex B, the key frames carry them in-band for the decoder
+     * to follow a format change without a restart. Set on the network thread, in order with the frames
+     */
+    private volatile byte[] mParameterSets;
+    /**
+     * The largest frame size the running decoder takes in-band, {@code 0} unless it supports adaptive playback.
+     * Guarded by the activity
+     */
+    private int mDecoderMaxWidth;
+    private int mDecoderMaxHeight;
+    private VideoCodec mDecoderCodec;
+    /**
+     * Whole frames received and not yet taken into {@link #mJitterBuffer}
+     */
+    private final Queue<AccessUnit> mAccessUnits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueuedFrames = new AtomicInteger();
+    /**
+     * Holds the frames back for the playout delay before the decoder takes them one per input buffer.
+     * Accessed on the decoder handler only
+     */
+    private final JitterBuffer mJitterBuffer = new JitterBuffer(this::requestSyncFrame);
+    /**
+     * Frames due for the decoder but not taken by it yet
+     */
+    private volatile int mLateFrames;
+    /**
+     * Runs the decoder callbacks and feeds the decoder, off the main looper busy with the layout and the input
+     */
+    private HandlerThread mDecoderThread;
+    private Handler mDecoderHandler;
+    /**
+     * Input buffers of {@link #mInputCodec} awaiting frames. Both are accessed on the decoder handler only
+     */
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
+    private MediaCodec mInputCodec;
+    private final Runnable mFeedDecoder = this::feedDecoder;
+
+    /**
+     * A decoded frame waiting for the vsync before the one it is to be shown at
+     */
+    private static class HeldFrame {
+        final int index;
+        final long releaseNs;
+
+        HeldFrame(int index, long releaseNs) {
+            this.index = index;
+            this.releaseNs = releaseNs;
+        }
+    }
+
+    /**
+     * Paces the decoded frames of {@link #mOutputCodec} to the display. All of these are accessed on the decoder handler
+     */
+    private RenderScheduler mRenderScheduler;
+    private final ArrayDeque<HeldFrame> mHeldFrames = new ArrayDeque<>();
+    private MediaCodec mOutputCodec;
+    private boolean mVsyncRunning;
+    private final Choreographer.FrameCallback mVsyncCallback = this::onVsync;
+    private long mPacingStatsTime;
 
     private final Runnable mHidePart2Runnable = new Runnable() {
         @SuppressLint("InlinedApi")
@@ -115,6 +204,16 @@ public class MainActivity extends AppCompatActivity {
     private ViewGroup mAvailabilityDependentControls;
     private Button mFlashButton;
     private TextView mTimestamp;
+    /**
+     * Timestamp of the latest frame for the UI to show. The updates coalesce while one is pending
+     */
+    private volatile long mLatestTimestamp;
+    private final AtomicBoolean mTimestampUpdatePending = new AtomicBoolean();
+    private final Runnable mUpdateTimestamp = () -> {
+        mTimestampUpdatePending.set(false);
+        mTimestamp.setText(datetimeFormat.format(new Date(mLatestTimestamp)));
+    };
+    private View mMotionIndicator;
 
     private final Runnable mHideRunnable = this::hideConnectionControls;
 
@@ -199,9 +298,12 @@ public class MainActivity extends AppCompatActivity {
         public void onDisconnected() {
             client = null;
             stopCodec();
+            clearAccessUnits();
+            mParameterSets = null;
             runOnUiThread(() -> {
                 mAuthControls.setVisibility(View.GONE);
                 mCameraControls.setVisibility(View.INVISIBLE);
+                mMotionIndicator.setVisibility(View.GONE);
                 restoreConnectControls();
                 mControlsView.setVisibility(View.VISIBLE);
             });
@@ -210,7 +312,14 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onAuthorized() {
             setAuthorized();
-            client.sendCommand(Command.CAPS, null);
+            if (mDecoders < 0) {
+                mDecoders = VideoCodecs.getSupported(false);
+            }
+            mVideoCodec = VideoCodec.AVC;
+            boolean live = PreferenceManager.getDefaultSharedPreferences(MainActivity.this)
+                    .getBoolean(getString(R.string.pref_key_live_playback), true);
+            mDecoderHandler.post(() -> mJitterBuffer.setLive(live));
+            client.requestCaps(getRequestedProfile(), mDecoders);
         }
 
         private void setAuthorized() {
@@ -224,23 +333,39 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onFormat(List<byte[]> csdBuffers) {
+            if (updateDecoder(csdBuffers)) {
+                return;
+            }
             stopCodec();
             startDecoder(csdBuffers);
+            //the decoder can't start on delta frames, so don't wait for the periodic key frame
+            requestSyncFrame();
         }
 
         @Override
-        public void onMedia(byte[] data) {
-            ByteBuffer dataBuffer = ByteBuffer.wrap(data);
-            Date now = new Date(dataBuffer.getLong());
-            MainActivity.this.runOnUiThread(() -> mTimestamp.setText(datetimeFormat.format(now)));
-            synchronized (mediaStream) {
-                mediaStream.write(data, dataBuffer.position(), dataBuffer.remaining());
-                Log.v(LOG_TAG, String.format("written %d bytes of media", data.length));
+        public void onMedia(PooledBuffer data) {
+            AccessUnit unit = new AccessUnit(data, mVideoCodec, System.currentTimeMillis(), mParameterSets);
+            mLatestTimestamp = unit.timestampMillis;
+            if (mTimestampUpdatePending.compareAndSet(false, true)) {
+                runOnUiThread(mUpdateTimestamp);
             }
+            mAccessUnits.offer(unit);
+            mQueuedFrames.incrementAndGet();
+            mDecoderHandler.post(mFeedDecoder);
         }
 
         @Override
         public void onCommand(Command command, byte[] data) {
+            List<byte[]> csdBuffers = command == Command.FORMAT ? readCodecSpecificData(data) : null;
+            if (csdBuffers != null) {
+                //the frames following the format carry its parameter sets
+                mParameterSets = joinCodecSpecificData(csdBuffers).array();
+            }
+            VideoCodec profileCodec = command == Command.PROFILE ? readProfileCodec(data) : null;
+            if (profileCodec != null) {
+                //the frames and the format following the profile are parsed on this thread
+                mVideoCodec = profileCodec;
+            }
             runOnUiThread(() -> {
                 ByteBuffer buffer = ByteBuffer.wrap(data);
                 int len;
@@ -285,17 +410,35 @@ public class MainActivity extends AppCompatActivity {
                             setCameraControlsAvailability(buffer.get() == CAMERA_AVAILABLE);
                         }
                         break;
-                    case FORMAT: {
-                        List<byte[]> csdBuffers = new ArrayList<>();
-                        while (buffer.hasRemaining()) {
-                            len = buffer.getInt();
-                            byte[] csd = new byte[len];
-                            buffer.get(csd);
-                            csdBuffers.add(csd);
+                    case PROFILE:
+                        if (checkDataLen(command, EncoderProfile.SIZE, null, data)) {
+                            EncoderProfile profile;
+                            VideoCodec codec;
+                            try {
+                                profile = EncoderProfile.read(buffer);
+                                codec = buffer.hasRemaining() ? VideoCodec.lookup(buffer.get()) : VideoCodec.AVC;
+                                if (codec == VideoCodec.UNDEFINED) {
+                                    throw new IllegalArgumentException("Unknown codec");
+                                }
+                            } catch (IllegalArgumentException e) {
+                                Toast.makeText(MainActivity.this,
+                                        getString(R.string.malformed_command, command.toString(), e.getMessage()),
+                                        Toast.LENGTH_SHORT).show();
+                                break;
+                            }
+                            Log.i(LOG_TAG, String.format("Server encoder profile: %s %s", codec, profile));
+                            mVideoWidth = profile.width;
+                            mVideoHeight = profile.height;
                         }
+                        break;
+                    case MOTION:
+                        if (checkDataLen(command, null, 1, data)) {
+                            mMotionIndicator.setVisibility(data[0] != 0 ? View.VISIBLE : View.GONE);
+                        }
+                        break;
+                    case FORMAT:
                         onFormat(csdBuffers);
                         break;
-                    }
                     case UNDEFINED:
                         Toast.makeText(MainActivity.this,
                                 getString(R.string.unknown_command, data[0]),
@@ -304,6 +447,11 @@ public class MainActivity extends AppCompatActivity {
             });
         }
 
+        @Override
+        public int getQueueDepth() {
+            return mQueuedFrames.get() + mLateFrames;
+        }
+
         @Override
         public void onError(Error situation, Byte aux, Throwable e) {
             String message;
@@ -334,6 +482,73 @@ public class MainActivity extends AppCompatActivity {
             runOnUiThread(() -> Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show());
         }
 
+        /**
+         * @return the codec {@link Command#PROFILE} carries, {@code null} if the command is malformed
+         */
+        private VideoCodec readProfileCodec(byte[] data) {
+            if (data.length < EncoderProfile.SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            try {
+                EncoderProfile.read(buffer);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            VideoCodec codec = buffer.hasRemaining() ? VideoCodec.lookup(buffer.get()) : VideoCodec.AVC;
+            return codec == VideoCodec.UNDEFINED ? null : codec;
+        }
+
+        private List<byte[]> readCodecSpecificData(byte[] data) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            List<byte[]> csdBuffers = new ArrayList<>();
+            while (buffer.hasRemaining()) {
+                byte[] csd = new byte[buffer.getInt()];
+                buffer.get(csd);
+                csdBuffers.add(csd);
+            }
+            return csdBuffers;
+        }
+
+        /**
+         * Keeps the running decoder for the new format: a decoder of adaptive playback takes the parameter sets
+         * in-band with the next key frame, others are reconfigured without being released
+         *
+         * @return {@code false} if the decoder is to be created anew
+         */
+        private boolean updateDecoder(List<byte[]> csdBuffers) {
+            synchronized (MainActivity.this) {
+                MediaCodec codec = mCodec;
+                if (codec == null || mDecoderCodec != mVideoCodec || !mTextureView.isAvailable()) {
+                    return false;
+                }
+
+                if (mVideoWidth <= mDecoderMaxWidth && mVideoHeight <= mDecoderMaxHeight) {
+                    Log.i(LOG_TAG, String.format("decoder adapting to %dx%d in-band", mVideoWidth, mVideoHeight));
+                    mTextureView.getSurfaceTexture().setDefaultBufferSize(mVideoWidth, mVideoHeight);
+                    View textureParent = (View) (mTextureView.getParent());
+                    updateTextureLayout(textureParent.getMeasuredWidth(), textureParent.getMeasuredHeight());
+                    return true;
+                }
+
+                try {
+                    codec.stop();
+                    //the callbacks of the previous configuration are gone, the buffers they handed out with them
+                    mDecoderHandler.post(() -> {
+                        mInputCodec = null;
+                        mOutputCodec = null;
+                    });
+                    configureCodec(csdBuffers);
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "decoder reconfiguration failed", e);
+                    return false;
+                }
+                Log.i(LOG_TAG, "decoder reconfigured");
+            }
+            requestSyncFrame();
+            return true;
+        }
+
         private boolean checkDataLen(Command command, Integer countAtLeast, Integer countExact, byte[] data) {
             if (data == null
                     || (countAtLeast != null && data.length < countAtLeast)
@@ -403,6 +618,10 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
 
         mHideHandler = new Handler(getMainLooper());
+        mDecoderThread = new HandlerThread("Decoder", Process.THREAD_PRIORITY_DISPLAY);
+        mDecoderThread.start();
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+        mRenderScheduler = new RenderScheduler((long) (1e9 / getWindowManager().getDefaultDisplay().getRefreshRate()));
 
         ActivityMainBinding binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
@@ -422,6 +641,7 @@ public class MainActivity extends AppCompatActivity {
         mFlashButton = binding.flashButton;
         mAvailabilityDependentControls = binding.availabilityDependentControls;
         mTimestamp = binding.timestamp;
+        mMotionIndicator = binding.motion;
 
         mTextureView = binding.fullscreenContent;
         ((View) mTextureView.getParent()).addOnLayoutChangeListener(
@@ -435,6 +655,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         terminateSession();
+        mDecoderThread.quitSafely();
         super.onDestroy();
     }
 
@@ -460,18 +681,15 @@ public class MainActivity extends AppCompatActivity {
         float width = 0, height = 0;
         boolean swap = textureRotation % 180 == 90;
         if (mCodec != null) {
-            synchronized (this) {
-                if (mCodec != null) {
-                    float w = mCodec.getInputFormat().getInteger(KEY_WIDTH);
-                    float h = mCodec.getInputFormat().getInteger(KEY_HEIGHT);
-                    if (swap) {
-                        width = h;
-                        height = w;
-                    } else {
-                        width = w;
-                        height = h;
-                    }
-                }
+            //the decoder may be adapting to a new size in-band
+            float w = mVideoWidth;
+            float h = mVideoHeight;
+            if (swap) {
+                width = h;
+                height = w;
+            } else {
+                width = w;
+                height = h;
             }
         }
         if (width == 0 || height == 0) {
@@ -513,13 +731,45 @@ public class MainActivity extends AppCompatActivity {
         return result;
     }
 
+    private void requestSyncFrame() {
+        StreamingClient streamingClient = client;
+        if (streamingClient != null) {
+            streamingClient.requestSyncFrame();
+        }
+    }
+
+    /**
+     * @return the encoder profile chosen in the settings, the server may adjust it to its codec
+     */
+    private EncoderProfile getRequestedProfile() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        EncoderProfile defaults = EncoderProfile.DEFAULT;
+        try {
+            String[] size = preferences.getString(getString(R.string.pref_key_resolution),
+                    defaults.width + "x" + defaults.height).split("x");
+            return new EncoderProfile(
+                    Integer.parseInt(size[0]),
+                    Integer.parseInt(size[1]),
+                    Integer.parseInt(preferences.getString(getString(R.string.pref_key_bitrate),
+                            String.valueOf(defaults.bitRate))),
+                    Integer.parseInt(preferences.getString(getString(R.string.pref_key_frame_rate),
+                            String.valueOf(defaults.frameRate))),
+                    Integer.parseInt(preferences.getString(getString(R.string.pref_key_key_frame_interval),
+                            String.valueOf(defaults.iFrameInterval))));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            Log.w(LOG_TAG, "Invalid video settings, requesting the default profile", e);
+            return defaults;
+        }
+    }
+
     private synchronized void startDecoder(List<byte[]> csdBuffers) {
         try {
-            mCodec = MediaCodec.createDecoderByType(MIMETYPE_VIDEO_AVC);
+            mCodec = MediaCodec.createDecoderByType(mVideoCodec.mimeType);
         } catch (IOException e) {
             Log.d(LOG_TAG, "Codec missing", e);
             return;
         }
+        mDecoderCodec = mVideoCodec;
         prepareDecoder(csdBuffers);
     }
 
@@ -549,14 +799,36 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void configureCodec(List<byte[]> csdBuffers) {
-        int width = 640;
-        int height = 480;
+    private static ByteBuffer joinCodecSpecificData(List<byte[]> csdBuffers) {
+        int size = 0;
+        for (byte[] csd : csdBuffers) {
+            size += csd.length;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(size);
+        for (byte[] csd : csdBuffers) {
+            joined.put(csd);
+        }
+        joined.flip();
+        return joined;
+    }
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIMETYPE_VIDEO_AVC, width, height);
-        for (int i = 0; i < csdBuffers.size(); i++) {
-            format.setByteBuffer("csd-" + i, ByteBuffer.wrap(csdBuffers.get(i)));
+    private void configureCodec(List<byte[]> csdBuffers) {
+        int width = mVideoWidth;
+        int height = mVideoHeight;
+
+        VideoCodec codec = mVideoCodec;
+        MediaFormat format = MediaFormat.createVideoFormat(codec.mimeType, width, height);
+        if (codec == VideoCodec.HEVC) {
+            //HEVC decoders take the VPS, SPS and PPS together
+            format.setByteBuffer("csd-0", joinCodecSpecificData(csdBuffers));
+        } else {
+            for (int i = 0; i < csdBuffers.size(); i++) {
+                format.setByteBuffer("csd-" + i, ByteBuffer.wrap(csdBuffers.get(i)));
+            }
         }
+        //keyframes of high resolution streams may exceed codec's default input buffer size
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_ACCESS_UNIT_SIZE);
+        setAdaptivePlayback(format, codec, width, height);
 
         SurfaceTexture texture = mTextureView.getSurfaceTexture();
         texture.setDefaultBufferSize(width, height);
@@ -568,50 +840,200 @@ public class MainActivity extends AppCompatActivity {
         View textureParent = (View) (mTextureView.getParent());
         updateTextureLayout(textureParent.getMeasuredWidth(), textureParent.getMeasuredHeight());
 
-        mCodec.setCallback(mDecoderCallback);
+        mCodec.setCallback(mDecoderCallback, mDecoderHandler);
         mCodec.start();
         Log.i(LOG_TAG, "decoder started");
     }
 
-    private final MediaCodec.Callback mDecoderCallback = new MediaCodec.Callback() {
-        @Override
-        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-            byte[] b;
-            ByteBuffer inputBuffer;
-            try {
-                inputBuffer = codec.getInputBuffer(index);
-            } catch (IllegalStateException e) {
-                Log.w(LOG_TAG, "error retrieving input buffer", e);
-                return;
-            }
-            inputBuffer.clear();
-            synchronized (mediaStream) {
-                b = mediaStream.toByteArray();
-                mediaStream.reset();
-            }
-            inputBuffer.put(b);
+    /**
+     * Queues the due frames to the decoder one per input buffer, as long as both are available,
+     * and schedules itself for the next frame to come due. Runs on the decoder handler
+     */
+    private void feedDecoder() {
+        AccessUnit unit;
+        while ((unit = mAccessUnits.poll()) != null) {
+            mQueuedFrames.decrementAndGet();
+            mJitterBuffer.add(unit);
+        }
+
+        long now = System.currentTimeMillis();
+        MediaCodec codec = mInputCodec;
+        if (codec != null && codec == mCodec) {
+            queueDueFrames(codec, now);
+        }
+        mLateFrames = mJitterBuffer.getDueCount(now);
 
-            Log.v(LOG_TAG, String.format("processing %d bytes of media to buffer #%d", b.length, index));
+        mDecoderHandler.removeCallbacks(mFeedDecoder);
+        long wait = mJitterBuffer.getWaitMillis(now);
+        if (wait > 0) {
+            mDecoderHandler.postDelayed(mFeedDecoder, wait);
+        }
+    }
+
+    private void queueDueFrames(MediaCodec codec, long now) {
+        AccessUnit unit;
+        while (!mInputBuffers.isEmpty() && (unit = mJitterBuffer.poll(now)) != null) {
+            int index = mInputBuffers.poll();
             try {
-                codec.queueInputBuffer(index, 0, b.length, 0, 0);
+                ByteBuffer inputBuffer = codec.getInputBuffer(index);
+                inputBuffer.clear();
+                if (unit.size() > inputBuffer.remaining()) {
+                    Log.w(LOG_TAG, String.format("%d bytes frame exceeds the input buffer", unit.size()));
+                    mInputBuffers.offerFirst(index);
+                    //the picture stays corrupted till the next key frame
+                    requestSyncFrame();
+                    continue;
+                }
+                unit.writeTo(inputBuffer);
+                Log.v(LOG_TAG, String.format("queuing %d bytes of media to buffer #%d", unit.size(), index));
+                codec.queueInputBuffer(index, 0, unit.size(), unit.getPresentationTimeUs(), 0);
             } catch (IllegalStateException e) {
                 Log.w(LOG_TAG, "error queuing new input buffer", e);
+            } finally {
+                unit.release();
             }
         }
+    }
+
+    private void startVsyncCallbacks() {
+        if (!mVsyncRunning) {
+            mVsyncRunning = true;
+            Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+        }
+    }
 
-        @Override
-        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+    /**
+     * Runs on the decoder handler for as long as the decoder runs
+     */
+    private void onVsync(long frameTimeNanos) {
+        mRenderScheduler.onVsync(frameTimeNanos);
+        releaseHeldFrames(System.nanoTime());
+        if (mCodec != null) {
+            Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+        } else {
+            mVsyncRunning = false;
+        }
+    }
+
+    /**
+     * Releases the held frames to the surface with their render timestamps a vsync ahead, the surface
+     * shows them at the vsync the timestamps fall before
+     */
+    private void releaseHeldFrames(long now) {
+        MediaCodec codec = mOutputCodec;
+        if (codec != mCodec) {
+            //the buffers of a stopped decoder are gone with it
+            mHeldFrames.clear();
+            return;
+        }
+
+        HeldFrame frame;
+        while ((frame = mHeldFrames.peek()) != null
+                && frame.releaseNs - now <= mRenderScheduler.getVsyncPeriodNs()) {
+            mHeldFrames.poll();
             try {
-                codec.releaseOutputBuffer(index, true);
+                codec.releaseOutputBuffer(frame.index, frame.releaseNs);
                 Log.v(LOG_TAG, "output buffer released to surface");
             } catch (IllegalStateException e) {
                 Log.w(LOG_TAG, "error releasing output buffer", e);
             }
         }
+    }
+
+    private void clearAccessUnits() {
+        mDecoderHandler.post(() -> {
+            AccessUnit unit;
+            while ((unit = mAccessUnits.poll()) != null) {
+                mQueuedFrames.decrementAndGet();
+                unit.release();
+            }
+            mJitterBuffer.clear();
+            mLateFrames = 0;
+        });
+    }
+
+    /**
+     * Lets the decoder follow a larger format in-band, up to the largest size the monitor requests
+     */
+    private void setAdaptivePlayback(MediaFormat format, VideoCodec codec, int width, int height) {
+        mDecoderMaxWidth = 0;
+        mDecoderMaxHeight = 0;
+        MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = mCodec.getCodecInfo().getCapabilitiesForType(codec.mimeType);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (!capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback)) {
+            return;
+        }
+
+        int maxWidth = Math.max(width, MAX_ADAPTIVE_WIDTH);
+        int maxHeight = Math.max(height, MAX_ADAPTIVE_HEIGHT);
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        if (videoCapabilities != null && !videoCapabilities.isSizeSupported(maxWidth, maxHeight)) {
+            maxWidth = width;
+            maxHeight = height;
+        }
+        format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+        format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+        mDecoderMaxWidth = maxWidth;
+        mDecoderMaxHeight = maxHeight;
+    }
+
+    private final MediaCodec.Callback mDecoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (codec != mCodec) {
+                //a stopped decoder's callback still queued
+                return;
+            }
+            if (codec != mInputCodec) {
+                //the buffers of a stopped decoder are gone with it
+                mInputBuffers.clear();
+                mInputCodec = codec;
+            }
+            mInputBuffers.offer(index);
+            feedDecoder();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if (codec != mCodec) {
+                return;
+            }
+            if (codec != mOutputCodec) {
+                mHeldFrames.clear();
+                mOutputCodec = codec;
+                mRenderScheduler.reset();
+                startVsyncCallbacks();
+            }
+
+            long now = System.nanoTime();
+            long releaseNs = mRenderScheduler.schedule(info.presentationTimeUs, now);
+            if (releaseNs == RenderScheduler.DROP) {
+                try {
+                    codec.releaseOutputBuffer(index, false);
+                    Log.v(LOG_TAG, "late output buffer dropped");
+                } catch (IllegalStateException e) {
+                    Log.w(LOG_TAG, "error releasing output buffer", e);
+                }
+            } else {
+                mHeldFrames.add(new HeldFrame(index, releaseNs));
+                releaseHeldFrames(now);
+            }
+
+            if (now - mPacingStatsTime > PACING_STATS_INTERVAL_NS) {
+                mPacingStatsTime = now;
+                Log.i(LOG_TAG, "Frame pacing: " + mRenderScheduler.takeStats());
+            }
+        }
 
         @Override
         public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
             Log.e(LOG_TAG, "decoder error", e);
+            //the picture stays corrupted till the next key frame
+            requestSyncFrame();
         }
 
         @Override
@@ -0,0 +1,151 @@
+package ru.coolsoft.p2pmonitor;
+
+import java.util.Locale;
+
+/**
+ * Maps the presentation timestamps of the decoded frames onto the local monotonic clock and picks the vsync
+ * for each frame to be shown at, so that the frames keep the source spacing rather than the network's.
+ * The mapping is anchored at the first frame with a couple of vsyncs of headroom, and re-anchored when the frames
+ * keep missing their vsyncs or the timestamps jump ahead. Other frames missing their vsyncs are dropped.
+ * Not thread safe
+ */
+class RenderScheduler {
+    /**
+     * {@link #schedule} result for a frame to be dropped
+     */
+    static final long DROP = -1;
+    /**
+     * Consecutive late frames which are taken for the decoding having fallen behind rather than a hiccup
+     */
+    static final int REANCHOR_LATE_FRAMES = 3;
+    /**
+     * Vsyncs between the decoder output and the display the mapping leaves on anchoring
+     */
+    static final int HEADROOM_VSYNCS = 2;
+    /**
+     * Part of the vsync period to release a frame ahead of its vsync by, for it to be latched on that very vsync
+     */
+    static final int VSYNC_OFFSET_PERCENT = 80;
+    /**
+     * The farthest ahead a frame is scheduled, MediaCodec takes later timestamps for a clock mismatch
+     */
+    static final long MAX_AHEAD_NS = 1000000000L;
+
+    private long vsyncPeriodNs;
+    private long vsyncTimeNs = -1;
+
+    private boolean anchored;
+    private long offsetNs;
+    private int lateFrames;
+
+    private long rendered;
+    private long dropped;
+    private boolean lastKnown;
+    private long lastPtsUs;
+    private long lastVsyncNs;
+    private long pacingErrorNs;
+    private long pacedFrames;
+
+    /**
+     * @param vsyncPeriodNs the display refresh period to start with, refined from {@link #onVsync}
+     */
+    RenderScheduler(long vsyncPeriodNs) {
+        this.vsyncPeriodNs = vsyncPeriodNs;
+    }
+
+    void onVsync(long frameTimeNanos) {
+        if (vsyncTimeNs >= 0) {
+            long period = frameTimeNanos - vsyncTimeNs;
+            //skipped vsyncs don't count
+            if (period > vsyncPeriodNs / 2 && period < vsyncPeriodNs * 3 / 2) {
+                vsyncPeriodNs += (period - vsyncPeriodNs) / 8;
+            }
+        }
+        vsyncTimeNs = frameTimeNanos;
+    }
+
+    long getVsyncPeriodNs() {
+        return vsyncPeriodNs;
+    }
+
+    /**
+     * @return the time to release the frame to the surface at, on the local monotonic clock, or {@link #DROP}
+     */
+    long schedule(long ptsUs, long nowNs) {
+        long vsync = align(ptsUs * 1000 + offsetNs);
+        if (!anchored || vsync - nowNs > MAX_AHEAD_NS) {
+            vsync = anchor(ptsUs, nowNs);
+        } else if (vsync < nowNs) {
+            if (++lateFrames < REANCHOR_LATE_FRAMES) {
+                dropped++;
+                return DROP;
+            }
+            vsync = anchor(ptsUs, nowNs);
+        } else {
+            lateFrames = 0;
+        }
+
+        if (lastKnown) {
+            pacingErrorNs += Math.abs((vsync - lastVsyncNs) - (ptsUs - lastPtsUs) * 1000);
+            pacedFrames++;
+        }
+        lastKnown = true;
+        lastPtsUs = ptsUs;
+        lastVsyncNs = vsync;
+        rendered++;
+        return vsync - vsyncPeriodNs * VSYNC_OFFSET_PERCENT / 100;
+    }
+
+    /**
+     * Starts the mapping over, for a new decoder
+     */
+    void reset() {
+        anchored = false;
+        lateFrames = 0;
+        lastKnown = false;
+    }
+
+    long getRenderedFrames() {
+        return rendered;
+    }
+
+    long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * @return the mean deviation of the intervals between the vsyncs the frames are shown at
+     * from the intervals between their timestamps, since the last call
+     */
+    double takePacingErrorMillis() {
+        double error = pacedFrames == 0 ? 0 : pacingErrorNs / 1e6 / pacedFrames;
+        pacingErrorNs = 0;
+        pacedFrames = 0;
+        return error;
+    }
+
+    String takeStats() {
+        return String.format(Locale.ROOT, "rendered %d, dropped late %d, pacing error %.2f ms, vsync %.2f ms",
+                rendered, dropped, takePacingErrorMillis(), vsyncPeriodNs / 1e6);
+    }
+
+    private long anchor(long ptsUs, long nowNs) {
+        anchored = true;
+        lateFrames = 0;
+        //the pacing restarts too
+        lastKnown = false;
+        offsetNs = nowNs + HEADROOM_VSYNCS * vsyncPeriodNs - ptsUs * 1000;
+        return align(ptsUs * 1000 + offsetNs);
+    }
+
+    /**
+     * @return the vsync closest to the time, the time itself till the vsyncs are known
+     */
+    private long align(long timeNs) {
+        if (vsyncTimeNs < 0) {
+            return timeNs;
+        }
+        long vsyncs = Math.round((double) (timeNs - vsyncTimeNs) / vsyncPeriodNs);
+        return vsyncTimeNs + vsyncs * vsyncPeriodNs;
+    }
+}
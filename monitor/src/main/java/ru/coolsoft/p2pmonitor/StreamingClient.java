@@ -13,6 +13,12 @@ import static ru.coolsoft.common.Constants.CIPHER_TRANSFORMATION;
 import static ru.coolsoft.common.Constants.SSL_PROTOCOL;
 import static ru.coolsoft.common.Constants.UNUSED;
 import static ru.coolsoft.common.Defaults.SERVER_PORT;
+import static ru.coolsoft.common.Protocol.CAPS_ENCODER_PROFILE;
+import static ru.coolsoft.common.Protocol.CAPS_MOTION_EVENTS;
+import static ru.coolsoft.common.Protocol.CAPS_RECORD_MODE;
+import static ru.coolsoft.common.Protocol.CAPS_SHARED_MEDIA_KEY;
+import static ru.coolsoft.common.Protocol.CAPS_TRANSPORT_SECURED;
+import static ru.coolsoft.common.Protocol.CAPS_VIDEO_CODECS;
 import static ru.coolsoft.common.Protocol.END_OF_STREAM;
 import static ru.coolsoft.common.Protocol.createSendRoutine;
 import static ru.coolsoft.common.enums.StreamId.AUTHENTICATION;
@@ -36,7 +42,6 @@ import androidx.core.util.Consumer;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.net.InetAddress;
@@ -44,6 +49,7 @@ import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
@@ -60,7 +66,6 @@ import java.util.List;
 import java.util.concurrent.Semaphore;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.net.ssl.SSLContext;
@@ -71,26 +76,66 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import ru.coolsoft.common.CipherBlockSizeAwareOutputStream;
-import ru.coolsoft.common.Protocol;
+import ru.coolsoft.common.EncoderProfile;
+import ru.coolsoft.common.FrameDecoder;
+import ru.coolsoft.common.FrameReader;
+import ru.coolsoft.common.MediaSealer;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.ReceiverStats;
+import ru.coolsoft.common.RecordCipher;
 import ru.coolsoft.common.enums.Command;
 import ru.coolsoft.common.enums.StreamId;
 
 public class StreamingClient extends Thread {
     private static final String LOG_TAG = StreamingClient.class.getSimpleName();
     private static final String INSECURE_CONNECTION_FALLBACK_SUFFIX = ". Trying insecure connection";
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
 
     private final EventListener eventListener;
     private final Handler handler;
+    private final FrameDecoder decoder = new FrameDecoder();
     private final String serverAddress;
     private HandlerThread handlerThread;
 
     private Socket socket;
-    private InputStream in;
-    private CipherInputStream cin;
+    private FrameReader reader;
     private OutputStream out;
     private CipherBlockSizeAwareOutputStream cout;
 
     private byte[] mSha;
+    /**
+     * Copy of the password hash kept for the {@link Command#RECORD_MODE} key derivation
+     */
+    private byte[] recordSecret;
+    /**
+     * Opens frames from the server once it switches to records. Replaces the stream cipher from then on
+     */
+    private RecordCipher records;
+    /**
+     * Whether the server certificate got verified against the pinned one rather than trusted by user's decision
+     */
+    private volatile boolean certificateVerified;
+    /**
+     * Set once the server relies on the verified TLS session alone, see {@link Command#TRANSPORT_SECURED}
+     */
+    private boolean transportSecured;
+    private MediaSealer mediaSealer;
+    /**
+     * Set once the server is known to take {@link Command#RECEIVER_REPORT}s and {@link Command#SYNC_FRAME} requests
+     */
+    private volatile ReceiverStats receiverStats;
+    private final Runnable receiverReport = new Runnable() {
+        @Override
+        public void run() {
+            ReceiverStats stats = receiverStats;
+            if (stats == null || socket == null) {
+                return;
+            }
+            sendCommand(Command.RECEIVER_REPORT,
+                    stats.report(System.currentTimeMillis(), eventListener.getQueueDepth()).toByteArray());
+            handler.postDelayed(this, REPORT_INTERVAL_MILLIS);
+        }
+    };
 
     private final Semaphore userInteractionSemaphore = new Semaphore(0);
 
@@ -124,6 +169,57 @@ public class StreamingClient extends Thread {
         Message.obtain(handler, UNUSED, CONTROL.id, command.id, data).sendToTarget();
     }
 
+    /**
+     * Requests the server capabilities, advertising the protocol features supported by this client
+     *
+     * @param profile encoder settings to ask the server for. The server replies with {@link Command#PROFILE}
+     *                holding the ones it has validated
+     * @param videoCodecs {@link ru.coolsoft.common.VideoCodecs} the client decodes, the server picks one of them
+     */
+    public void requestCaps(EncoderProfile profile, int videoCodecs) {
+        byte flags = CAPS_RECORD_MODE | CAPS_ENCODER_PROFILE | CAPS_VIDEO_CODECS | CAPS_MOTION_EVENTS
+                | CAPS_SHARED_MEDIA_KEY;
+        if (certificateVerified && socket instanceof SSLSocket) {
+            flags |= CAPS_TRANSPORT_SECURED;
+        }
+        ByteBuffer caps = ByteBuffer.allocate(1 + EncoderProfile.SIZE + 1).put(flags);
+        sendCommand(Command.CAPS, profile.write(caps).put((byte) videoCodecs).array());
+    }
+
+    /**
+     * Asks the server for a key frame not to wait for a periodic one.
+     * Servers unaware of the request don't get it
+     */
+    public void requestSyncFrame() {
+        if (receiverStats != null) {
+            sendCommand(Command.SYNC_FRAME, new byte[0]);
+        }
+    }
+
+    private void startReceiverReports() {
+        if (receiverStats == null) {
+            receiverStats = new ReceiverStats(System.currentTimeMillis());
+            handler.postDelayed(receiverReport, REPORT_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Accounts the frame in the receiver stats and hands it over to the listener
+     *
+     * @param media wall-clock timestamp of the sender followed by the encoded data. Released once delivered
+     */
+    private void deliverMedia(PooledBuffer media) {
+        try {
+            ReceiverStats stats = receiverStats;
+            if (stats != null) {
+                stats.onFrame(media.asByteBuffer().getLong(), System.currentTimeMillis(), media.length());
+            }
+            eventListener.onMedia(media);
+        } finally {
+            media.release();
+        }
+    }
+
     @Override
     public void run() {
         InetSocketAddress address;
@@ -149,7 +245,8 @@ public class StreamingClient extends Thread {
 
         try {
             createSocket(address);
-            in = socket.getInputStream();
+            //sealed media is read past the cipher, so both share the reader's buffer
+            reader = new FrameReader(socket.getInputStream());
             out = socket.getOutputStream();
             eventListener.onConnected();
         } catch (IOException | OperationCanceledException e) {
@@ -162,10 +259,10 @@ public class StreamingClient extends Thread {
         try {
             loop:
             while (true) {
-                int streamId = (cin != null ? cin : in).read();
+                int streamId = reader.readByte();
                 switch (StreamId.lookup(streamId)) {
                     case AUTHENTICATION:
-                        int result = in.read();
+                        int result = reader.readByte();
                         switch (result) {
                             case AUTH_OK:
                                 if (!shaSent) {
@@ -186,24 +283,84 @@ public class StreamingClient extends Thread {
                         }
                         break;
 
-                    case MEDIA: {
-                        byte[] media = Protocol.readData(cin);
-                        eventListener.onMedia(media);
+                    case MEDIA:
+                        deliverMedia(records != null
+                                ? decoder.readRecord(reader.stream(), records, StreamId.MEDIA, UNUSED)
+                                : decoder.readFrame(reader.stream()));
+                        break;
+
+                    case MEDIA_FRAGMENT: {
+                        PooledBuffer media = decoder.readFragment(reader.stream());
+                        if (media != null) {
+                            deliverMedia(media);
+                        }
+                        break;
+                    }
+
+                    case MEDIA_SEALED: {
+                        if (mediaSealer == null) {
+                            throw new StreamCorruptedException("Sealed media before the key");
+                        }
+                        PooledBuffer sealed = records != null
+                                ? decoder.readSealedRecord(reader.stream(), records)
+                                : decoder.readSealedFrame(reader.stream(), reader.rawStream());
+                        PooledBuffer media;
+                        try {
+                            media = mediaSealer.open(sealed);
+                        } finally {
+                            sealed.release();
+                        }
+                        deliverMedia(media);
                         break;
                     }
 
                     case CONTROL: {
-                        int cmdId = cin.read();
+                        int cmdId = reader.readByte();
                         Command cmd = Command.lookup(cmdId);
                         byte[] data;
                         switch (cmd) {
                             case UNDEFINED:
+                                if (records != null) {
+                                    //keeps the record counter in step with the server
+                                    readCommandData(cmdId);
+                                }
                                 data = new byte[]{(byte) cmdId};
                                 break;
                             case END_OF_STREAM:
                                 break loop;
+                            case MEDIA_KEY:
+                                mediaSealer = new MediaSealer(readCommandData(cmdId));
+                                continue loop;
+                            case RECORD_MODE:
+                                if (records != null || transportSecured || recordSecret == null) {
+                                    throw new StreamCorruptedException("Unexpected record mode switch");
+                                }
+                                //the switch is the last frame ciphered with the stream cipher
+                                records = new RecordCipher(Cipher.DECRYPT_MODE, recordSecret, decoder.readData(reader.stream()));
+                                reader.setDecryptor(null);
+                                Arrays.fill(recordSecret, (byte) 0);
+                                recordSecret = null;
+                                continue loop;
+                            case PROFILE:
+                                //servers negotiating profiles take the reports and the sync frame requests
+                                startReceiverReports();
+                                data = readCommandData(cmdId);
+                                break;
+                            case TRANSPORT_SECURED:
+                                if (records != null || transportSecured || !certificateVerified) {
+                                    throw new StreamCorruptedException("Unexpected transport switch");
+                                }
+                                //the switch is the last frame ciphered with the stream cipher
+                                decoder.skipFrame(reader.stream());
+                                reader.setDecryptor(null);
+                                transportSecured = true;
+                                if (recordSecret != null) {
+                                    Arrays.fill(recordSecret, (byte) 0);
+                                    recordSecret = null;
+                                }
+                                continue loop;
                             default:
-                                data = Protocol.readData(cin);
+                                data = readCommandData(cmdId);
                                 break;
                         }
                         eventListener.onCommand(cmd, data);
@@ -227,18 +384,26 @@ public class StreamingClient extends Thread {
         } catch (IOException e) {
             Log.w(LOG_TAG, "Client loop interrupted", e);
         } finally {
+            decoder.reset();
             terminateAndCleanup();
         }
     }
 
+    private byte[] readCommandData(int cmdId) throws StreamCorruptedException, EOFException {
+        return records != null
+                ? decoder.readRecordData(reader.stream(), records, CONTROL, cmdId)
+                : decoder.readData(reader.stream());
+    }
+
     private void setupCiphers() throws GeneralSecurityException {
         SecretKeySpec secretKeySpec = new SecretKeySpec(mSha, CIPHER_ALGORITHM);
         IvParameterSpec paramSpec = new IvParameterSpec(CIPHER_IV.getBytes(Charset.forName(CIPHER_IV_CHARSET)));
+        recordSecret = Arrays.copyOf(mSha, mSha.length);
         Arrays.fill(mSha, (byte) 0);
 
         Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
         cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, paramSpec);
-        cin = new CipherInputStream(in, cipher);
+        reader.setDecryptor(cipher);
 
         cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
         cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, paramSpec);
@@ -318,6 +483,7 @@ public class StreamingClient extends Thread {
             trustMgrFactory.init(ksAndroid);
             for (TrustManager trustManager : trustMgrFactory.getTrustManagers()) {
                 if (trustManager instanceof X509TrustManager) {
+                    certificateVerified = true;
                     resultConsumer.accept(new X509TrustManager[]{(X509TrustManager) trustManager});
                     return;
                 }
@@ -334,6 +500,7 @@ public class StreamingClient extends Thread {
 
     @SuppressLint("CustomX509TrustManager")
     public void onUntrustedConnectionDecision(boolean decision) {
+        certificateVerified = false;
         if (decision) {
             trustManagerConsumer.accept(new TrustManager[]{
                     new X509TrustManager() {
@@ -408,21 +575,13 @@ public class StreamingClient extends Thread {
             out = null;
         }
 
-        if (in != null) {
-            try {
-                in.close();
-            } catch (IOException e) {
-                eventListener.onError(ERROR_CLOSING, null, e);
-            }
-            in = null;
-        }
-        if (cin != null) {
+        if (reader != null) {
             try {
-                cin.close();
+                reader.rawStream().close();
             } catch (IOException e) {
                 eventListener.onError(ERROR_CLOSING, null, e);
             }
-            cin = null;
+            reader = null;
         }
 
         if (handlerThread != null) {
@@ -461,10 +620,18 @@ public class StreamingClient extends Thread {
 
         void onFormat(List<byte[]> csdBuffers);
 
-        void onMedia(byte[] data);
+        /**
+         * @param data media frame valid until the method returns
+         */
+        void onMedia(PooledBuffer data);
 
         void onCommand(Command command, byte[] data);
 
+        /**
+         * @return media frames received but not yet taken by the decoder
+         */
+        int getQueueDepth();
+
         void onError(Error situation, Byte aux, Throwable e);
     }
 }
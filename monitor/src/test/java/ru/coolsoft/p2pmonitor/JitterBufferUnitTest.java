@@ -0,0 +1,121 @@
+package ru.coolsoft.p2pmonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ru.coolsoft.common.BufferPool;
+import ru.coolsoft.common.PooledBuffer;
+import ru.coolsoft.common.enums.VideoCodec;
+
+public class JitterBufferUnitTest {
+    private static final byte[] IDR = {0, 0, 0, 1, 0x65, (byte) 0x88};
+    private static final byte[] DELTA = {0, 0, 0, 1, 0x41, (byte) 0x9a};
+    private static final long FRAME_MILLIS = 33;
+
+    private final BufferPool pool = BufferPool.getInstance();
+    private int keyFrameRequests;
+
+    private AccessUnit unit(long timestamp, long arrival, boolean keyFrame) {
+        byte[] data = keyFrame ? IDR : DELTA;
+        PooledBuffer media = pool.lease(8 + data.length);
+        media.asByteBuffer().putLong(timestamp).put(data);
+        AccessUnit unit = new AccessUnit(media, VideoCodec.AVC, arrival, null);
+        media.release();
+        return unit;
+    }
+
+    @Test
+    public void testSteadyStreamPlaysAtMinimalDelay() {
+        JitterBuffer buffer = new JitterBuffer(() -> keyFrameRequests++);
+        buffer.add(unit(1000, 1050, true));
+        assertEquals(JitterBuffer.MIN_DELAY_MILLIS, buffer.getWaitMillis(1050));
+        assertNull(buffer.poll(1050));
+
+        AccessUnit due = buffer.poll(1050 + JitterBuffer.MIN_DELAY_MILLIS);
+        assertNotNull(due);
+        assertTrue(due.keyFrame);
+        due.release();
+        assertEquals(-1, buffer.getWaitMillis(2000));
+    }
+
+    @Test
+    public void testDelayFollowsJitter() {
+        JitterBuffer buffer = new JitterBuffer(() -> keyFrameRequests++);
+        for (int i = 0; i < 100; i++) {
+            //every other frame is 40 ms late
+            long timestamp = i * FRAME_MILLIS;
+            buffer.add(unit(timestamp, timestamp + 20 + (i % 2) * 40, i == 0));
+        }
+        long delay = buffer.getPlayoutDelay();
+        assertTrue(delay >= 40);
+        assertTrue(delay <= JitterBuffer.MAX_DELAY_MILLIS);
+
+        //the late frames are played in time at the base transit plus the delay
+        assertEquals(100, buffer.getDueCount(99 * FRAME_MILLIS + 20 + delay));
+        buffer.clear();
+    }
+
+    @Test
+    public void testLiveModeSkipsToBufferedKeyFrame() {
+        JitterBuffer buffer = new JitterBuffer(() -> keyFrameRequests++);
+        buffer.setLive(true);
+        for (int i = 0; i < 60; i++) {
+            long timestamp = i * FRAME_MILLIS;
+            buffer.add(unit(timestamp, timestamp, i % 30 == 0));
+        }
+
+        //the decoder stalled for two seconds
+        long now = 59 * FRAME_MILLIS + 2000;
+        AccessUnit next = buffer.poll(now);
+        assertNotNull(next);
+        assertTrue(next.keyFrame);
+        assertEquals(30 * FRAME_MILLIS, next.timestampMillis);
+        next.release();
+        assertEquals(30, buffer.getDroppedFrames());
+        assertEquals(0, keyFrameRequests);
+        buffer.clear();
+    }
+
+    @Test
+    public void testLiveModeAwaitsKeyFrame() {
+        JitterBuffer buffer = new JitterBuffer(() -> keyFrameRequests++);
+        buffer.setLive(true);
+        buffer.add(unit(0, 0, true));
+        buffer.add(unit(FRAME_MILLIS, FRAME_MILLIS, false));
+
+        assertNull(buffer.poll(5000));
+        assertEquals(1, keyFrameRequests);
+        assertEquals(2, buffer.getDroppedFrames());
+
+        //delta frames can't be decoded without the dropped ones, the key frame comes late but plays
+        buffer.add(unit(2 * FRAME_MILLIS, 5000, false));
+        assertEquals(0, buffer.size());
+        AccessUnit keyFrame = unit(3 * FRAME_MILLIS, 5010, true);
+        buffer.add(keyFrame);
+        assertSame(keyFrame, buffer.poll(5010 + buffer.getPlayoutDelay()));
+        keyFrame.release();
+    }
+
+    @Test
+    public void testRegularModeKeepsEveryFrame() {
+        JitterBuffer buffer = new JitterBuffer(() -> keyFrameRequests++);
+        buffer.add(unit(0, 0, true));
+        buffer.add(unit(FRAME_MILLIS, FRAME_MILLIS, false));
+
+        AccessUnit first = buffer.poll(5000);
+        assertNotNull(first);
+        assertTrue(first.keyFrame);
+        first.release();
+        AccessUnit second = buffer.poll(5000);
+        assertNotNull(second);
+        assertFalse(second.keyFrame);
+        second.release();
+        assertEquals(0, buffer.getDroppedFrames());
+    }
+}
@@ -0,0 +1,73 @@
+package ru.coolsoft.p2pmonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RenderSchedulerUnitTest {
+    private static final long VSYNC_NS = 16666667;
+    private static final long FRAME_US = 33333;
+
+    private static long releaseToVsync(RenderScheduler scheduler, long releaseNs) {
+        return releaseNs + scheduler.getVsyncPeriodNs() * RenderScheduler.VSYNC_OFFSET_PERCENT / 100;
+    }
+
+    @Test
+    public void testBurstyOutputIsPacedBySource() {
+        RenderScheduler scheduler = new RenderScheduler(VSYNC_NS);
+        scheduler.onVsync(0);
+
+        long previous = 0;
+        for (int i = 0; i < 30; i++) {
+            //the frames come out of the decoder in pairs
+            long now = (i / 2) * 2 * FRAME_US * 1000;
+            long release = scheduler.schedule(1000000 + i * FRAME_US, now);
+            assertTrue(release != RenderScheduler.DROP);
+
+            long vsync = releaseToVsync(scheduler, release);
+            assertEquals(0, vsync % VSYNC_NS);
+            if (i > 0) {
+                assertEquals(2 * VSYNC_NS, vsync - previous);
+            }
+            previous = vsync;
+        }
+        assertEquals(0, scheduler.getDroppedFrames());
+        assertTrue(scheduler.takePacingErrorMillis() < 1);
+    }
+
+    @Test
+    public void testLateFramesDroppedThenReanchored() {
+        RenderScheduler scheduler = new RenderScheduler(VSYNC_NS);
+        scheduler.onVsync(0);
+        scheduler.schedule(0, 0);
+
+        //the decoder stalls for half a second
+        long now = 500000000L;
+        for (int i = 1; i < RenderScheduler.REANCHOR_LATE_FRAMES; i++) {
+            assertEquals(RenderScheduler.DROP, scheduler.schedule(i * FRAME_US, now));
+        }
+        long release = scheduler.schedule(RenderScheduler.REANCHOR_LATE_FRAMES * FRAME_US, now);
+        assertTrue(releaseToVsync(scheduler, release) > now);
+        assertEquals(RenderScheduler.REANCHOR_LATE_FRAMES - 1, scheduler.getDroppedFrames());
+
+        //the frames after it are on time again
+        long next = scheduler.schedule((RenderScheduler.REANCHOR_LATE_FRAMES + 1) * FRAME_US, now);
+        assertEquals(2 * VSYNC_NS, next - release);
+    }
+
+    @Test
+    public void testVsyncPeriodFollowsDisplay() {
+        RenderScheduler scheduler = new RenderScheduler(VSYNC_NS);
+        long period = 11111111;
+        for (int i = 0; i < 100; i++) {
+            scheduler.onVsync(i * period);
+        }
+        assertTrue(Math.abs(scheduler.getVsyncPeriodNs() - period) < 10000);
+
+        //a missed frame callback isn't a longer period
+        long estimate = scheduler.getVsyncPeriodNs();
+        scheduler.onVsync(102 * period);
+        assertEquals(estimate, scheduler.getVsyncPeriodNs());
+    }
+}